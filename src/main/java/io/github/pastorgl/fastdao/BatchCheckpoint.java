@@ -0,0 +1,13 @@
+package io.github.pastorgl.fastdao;
+
+/**
+ * Callback for progress of batch operations, called after each committed batch.
+ */
+@FunctionalInterface
+public interface BatchCheckpoint {
+    /**
+     * @param rows    number of list instances committed so far, i.e. the index to resume from
+     * @param batches number of batches committed by the current call
+     */
+    void committed(int rows, int batches);
+}
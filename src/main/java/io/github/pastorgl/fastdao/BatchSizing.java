@@ -0,0 +1,125 @@
+package io.github.pastorgl.fastdao;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-DAO batch size policy, see {@link FastDAO#setBatchSizing(BatchSizing)}. Implementations must be thread-safe,
+ * as one DAO instance may run many batch operations concurrently.
+ */
+public interface BatchSizing {
+    /**
+     * @param rowBytes estimated size of one row, in bytes
+     * @return size of the next batch
+     */
+    int next(int rowBytes);
+
+    /**
+     * Called after each executed batch
+     *
+     * @param rows  number of rows in the batch
+     * @param nanos time taken to execute and commit the batch
+     */
+    void record(int rows, long nanos);
+
+    static BatchSizing fixed(int size) {
+        return new Fixed(size);
+    }
+
+    /**
+     * Batch size tuned by measured throughput within bounds, starting from {@link Adaptive#TARGET_BATCH_BYTES}
+     * worth of rows. Size is halved whenever a batch takes longer than target latency, and additively increased
+     * while throughput keeps up
+     *
+     * @param min          min batch size
+     * @param max          max batch size
+     * @param targetMillis max desired time to execute one batch
+     */
+    static BatchSizing adaptive(int min, int max, long targetMillis) {
+        return new Adaptive(min, max, targetMillis);
+    }
+
+    class Fixed implements BatchSizing {
+        private final int size;
+
+        private Fixed(int size) {
+            if (size <= 0) {
+                throw new IllegalArgumentException("batch size must be positive");
+            }
+
+            this.size = size;
+        }
+
+        @Override
+        public int next(int rowBytes) {
+            return size;
+        }
+
+        @Override
+        public void record(int rows, long nanos) {
+        }
+    }
+
+    class Adaptive implements BatchSizing {
+        /**
+         * Estimated batch volume to start from
+         */
+        public static final int TARGET_BATCH_BYTES = 1 << 20;
+
+        private final int min;
+        private final int max;
+        private final long targetNanos;
+        private final int increment;
+
+        private int size = 0;
+        /**
+         * Moving average of throughput, rows per second
+         */
+        private double rate = 0.D;
+
+        private Adaptive(int min, int max, long targetMillis) {
+            if ((min <= 0) || (max < min) || (targetMillis <= 0)) {
+                throw new IllegalArgumentException("bounds must be positive with min <= max, and target must be positive");
+            }
+
+            this.min = min;
+            this.max = max;
+            this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+            this.increment = Math.max(1, (max - min) / 32);
+        }
+
+        @Override
+        public synchronized int next(int rowBytes) {
+            if (size == 0) {
+                size = clamp(TARGET_BATCH_BYTES / Math.max(rowBytes, 1));
+            }
+
+            return size;
+        }
+
+        @Override
+        public synchronized void record(int rows, long nanos) {
+            if (nanos > targetNanos) {
+                size = clamp(size / 2);
+                rate = 0.D;
+                return;
+            }
+
+            // smaller tail batches don't tell much about larger ones
+            if (rows < size) {
+                return;
+            }
+
+            double current = rows * 1E9D / Math.max(nanos, 1L);
+            if ((rate == 0.D) || (current >= rate * 0.95D)) {
+                size = clamp(size + increment);
+            } else {
+                size = clamp(size - increment);
+            }
+            rate = (rate == 0.D) ? current : (rate * 0.7D + current * 0.3D);
+        }
+
+        private int clamp(int size) {
+            return Math.min(max, Math.max(min, size));
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package io.github.pastorgl.fastdao;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Binds values of a Java type to statement parameters and reads them from result set columns, see {@link Codecs}.
+ *
+ * @param <T> Java type
+ */
+public interface Codec<T> {
+    /**
+     * @param value non-null value
+     */
+    void bind(PreparedStatement ps, int i, T value) throws SQLException;
+
+    /**
+     * @return column value, or null for SQL NULL (primitive types may return their default value instead)
+     */
+    T read(ResultSet rs, int i) throws SQLException;
+}
@@ -0,0 +1,302 @@
+package io.github.pastorgl.fastdao;
+
+import java.math.BigDecimal;
+import java.sql.*;
+import java.time.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Registry of {@link Codec}s that bind and read values by their Java type. Field codecs are resolved once per field
+ * when entity mapping is built, so custom codecs must be registered before DAOs are instantiated or warmed up.
+ * Fields with {@link StoreConverter} or {@link RetrieveConverter} use converters instead of codecs, for the
+ * respective direction.
+ * <p>
+ * Built-in codecs cover primitive types and their wrappers, String, BigDecimal, byte[], java.util.Date (bound as
+ * TIMESTAMP), java.sql date/time types, java.time types, UUID, enums (bound by name, see {@link #ordinal(Class)}
+ * for ordinal mapping), and arrays of longs, ints, doubles and strings as SQL ARRAY. Values of {@link FastEntity}
+ * type are bound as their ids, and read as stubs with only primary key set. Everything else is bound and read with
+ * generic setObject/getObject.
+ */
+public final class Codecs {
+    private static final Map<Class<?>, Codec<?>> registered = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Codec<?>> resolved = new ConcurrentHashMap<>();
+
+    private static final Codec<Object> GENERIC = of(PreparedStatement::setObject, ResultSet::getObject);
+
+    static {
+        register(String.class, of(PreparedStatement::setString, ResultSet::getString));
+        register(long.class, of(PreparedStatement::setLong, ResultSet::getLong));
+        register(Long.class, of(PreparedStatement::setLong, (rs, i) -> {
+            long v = rs.getLong(i);
+            return rs.wasNull() ? null : v;
+        }));
+        register(int.class, of(PreparedStatement::setInt, ResultSet::getInt));
+        register(Integer.class, of(PreparedStatement::setInt, (rs, i) -> {
+            int v = rs.getInt(i);
+            return rs.wasNull() ? null : v;
+        }));
+        register(short.class, of(PreparedStatement::setShort, ResultSet::getShort));
+        register(Short.class, of(PreparedStatement::setShort, (rs, i) -> {
+            short v = rs.getShort(i);
+            return rs.wasNull() ? null : v;
+        }));
+        register(byte.class, of(PreparedStatement::setByte, ResultSet::getByte));
+        register(Byte.class, of(PreparedStatement::setByte, (rs, i) -> {
+            byte v = rs.getByte(i);
+            return rs.wasNull() ? null : v;
+        }));
+        register(double.class, of(PreparedStatement::setDouble, ResultSet::getDouble));
+        register(Double.class, of(PreparedStatement::setDouble, (rs, i) -> {
+            double v = rs.getDouble(i);
+            return rs.wasNull() ? null : v;
+        }));
+        register(float.class, of(PreparedStatement::setFloat, ResultSet::getFloat));
+        register(Float.class, of(PreparedStatement::setFloat, (rs, i) -> {
+            float v = rs.getFloat(i);
+            return rs.wasNull() ? null : v;
+        }));
+        register(boolean.class, of(PreparedStatement::setBoolean, ResultSet::getBoolean));
+        register(Boolean.class, of(PreparedStatement::setBoolean, (rs, i) -> {
+            boolean v = rs.getBoolean(i);
+            return rs.wasNull() ? null : v;
+        }));
+        register(BigDecimal.class, of(PreparedStatement::setBigDecimal, ResultSet::getBigDecimal));
+        register(byte[].class, of(PreparedStatement::setBytes, ResultSet::getBytes));
+
+        register(java.util.Date.class, of((ps, i, v) -> ps.setTimestamp(i, new Timestamp(v.getTime())), (rs, i) -> {
+            Timestamp v = rs.getTimestamp(i);
+            return (v == null) ? null : new java.util.Date(v.getTime());
+        }));
+        register(Date.class, of(PreparedStatement::setDate, ResultSet::getDate));
+        register(Time.class, of(PreparedStatement::setTime, ResultSet::getTime));
+        register(Timestamp.class, of(PreparedStatement::setTimestamp, ResultSet::getTimestamp));
+        register(LocalDate.class, of((ps, i, v) -> ps.setDate(i, Date.valueOf(v)), (rs, i) -> {
+            Date v = rs.getDate(i);
+            return (v == null) ? null : v.toLocalDate();
+        }));
+        register(LocalTime.class, of((ps, i, v) -> ps.setTime(i, Time.valueOf(v)), (rs, i) -> {
+            Time v = rs.getTime(i);
+            return (v == null) ? null : v.toLocalTime();
+        }));
+        register(LocalDateTime.class, of((ps, i, v) -> ps.setTimestamp(i, Timestamp.valueOf(v)), (rs, i) -> {
+            Timestamp v = rs.getTimestamp(i);
+            return (v == null) ? null : v.toLocalDateTime();
+        }));
+        register(Instant.class, of((ps, i, v) -> ps.setTimestamp(i, Timestamp.from(v)), (rs, i) -> {
+            Timestamp v = rs.getTimestamp(i);
+            return (v == null) ? null : v.toInstant();
+        }));
+        register(OffsetDateTime.class, of(PreparedStatement::setObject, (rs, i) -> rs.getObject(i, OffsetDateTime.class)));
+        register(UUID.class, of(PreparedStatement::setObject, (rs, i) -> {
+            Object v = rs.getObject(i);
+            if ((v == null) || (v instanceof UUID)) {
+                return (UUID) v;
+            }
+            if (v instanceof byte[]) {
+                long msb = 0L, lsb = 0L;
+                byte[] b = (byte[]) v;
+                for (int j = 0; j < 8; j++) {
+                    msb = (msb << 8) | (b[j] & 0xFF);
+                    lsb = (lsb << 8) | (b[j + 8] & 0xFF);
+                }
+                return new UUID(msb, lsb);
+            }
+            return UUID.fromString(v.toString());
+        }));
+
+        register(String[].class, array("varchar", String.class, String::valueOf));
+        register(Long[].class, array("int8", Long.class, v -> ((Number) v).longValue()));
+        register(Integer[].class, array("int4", Integer.class, v -> ((Number) v).intValue()));
+        register(Double[].class, array("float8", Double.class, v -> ((Number) v).doubleValue()));
+        register(long[].class, of((ps, i, v) -> ps.setArray(i, ps.getConnection().createArrayOf("int8", Arrays.stream(v).boxed().toArray())), (rs, i) -> {
+            Object[] a = readArray(rs, i);
+            return (a == null) ? null : Arrays.stream(a).mapToLong(v -> (v == null) ? 0L : ((Number) v).longValue()).toArray();
+        }));
+        register(int[].class, of((ps, i, v) -> ps.setArray(i, ps.getConnection().createArrayOf("int4", Arrays.stream(v).boxed().toArray())), (rs, i) -> {
+            Object[] a = readArray(rs, i);
+            return (a == null) ? null : Arrays.stream(a).mapToInt(v -> (v == null) ? 0 : ((Number) v).intValue()).toArray();
+        }));
+        register(double[].class, of((ps, i, v) -> ps.setArray(i, ps.getConnection().createArrayOf("float8", Arrays.stream(v).boxed().toArray())), (rs, i) -> {
+            Object[] a = readArray(rs, i);
+            return (a == null) ? null : Arrays.stream(a).mapToDouble(v -> (v == null) ? 0.D : ((Number) v).doubleValue()).toArray();
+        }));
+    }
+
+    private Codecs() {
+    }
+
+    /**
+     * Register a codec for values of exactly given type or its subclasses, replacing existing one
+     *
+     * @param type  Java type
+     * @param codec codec instance
+     */
+    public static <T> void register(Class<T> type, Codec<? super T> codec) {
+        registered.put(type, codec);
+        resolved.clear();
+    }
+
+    /**
+     * Codec that maps enum constants to their ordinals instead of names. Has to be registered for the enum type
+     * explicitly to be used
+     *
+     * @param type enum type
+     * @return ordinal codec
+     */
+    public static <T extends Enum<T>> Codec<T> ordinal(Class<T> type) {
+        T[] values = type.getEnumConstants();
+
+        return of((ps, i, v) -> ps.setInt(i, v.ordinal()), (rs, i) -> {
+            int o = rs.getInt(i);
+            if (rs.wasNull()) {
+                return null;
+            }
+            if ((o < 0) || (o >= values.length)) {
+                throw new SQLException("Unknown ordinal " + o + " of " + type.getCanonicalName());
+            }
+            return values[o];
+        });
+    }
+
+    /**
+     * Codec for the type: registered for the type or its nearest superclass, enum codec, or generic one
+     */
+    static Codec<Object> forType(Class<?> type) {
+        return (Codec<Object>) resolved.computeIfAbsent(type, Codecs::resolve);
+    }
+
+    private static Codec<?> resolve(Class<?> type) {
+        for (Class<?> t = type; t != null; t = t.getSuperclass()) {
+            Codec<?> codec = registered.get(t);
+            if (codec != null) {
+                return codec;
+            }
+            if (t.isEnum()) {
+                return byName((Class) t);
+            }
+        }
+
+        if (FastEntity.class.isAssignableFrom(type)) {
+            return reference((Class) type);
+        }
+
+        return GENERIC;
+    }
+
+    private static <T extends Enum<T>> Codec<T> byName(Class<T> type) {
+        Map<String, T> names = new HashMap<>();
+        for (T value : type.getEnumConstants()) {
+            names.put(value.name(), value);
+        }
+
+        return of((ps, i, v) -> ps.setString(i, v.name()), (rs, i) -> {
+            String name = rs.getString(i);
+            if (name == null) {
+                return null;
+            }
+
+            T value = names.get(name);
+            if (value == null) {
+                throw new SQLException("Unknown constant " + name + " of " + type.getCanonicalName());
+            }
+            return value;
+        });
+    }
+
+    /**
+     * Codec of references to other entities, bound as their ids and read as stubs with only primary key set, see
+     * {@link FastDAO#fetchReferences(java.util.List, String, FastDAO)}
+     */
+    private static <T extends FastEntity> Codec<T> reference(Class<T> type) {
+        return new Codec<T>() {
+            @Override
+            public void bind(PreparedStatement ps, int i, T value) throws SQLException {
+                Object id = value.getId();
+                if (id == null) {
+                    ps.setObject(i, null);
+                } else {
+                    forType(id.getClass()).bind(ps, i, id);
+                }
+            }
+
+            @Override
+            public T read(ResultSet rs, int i) throws SQLException {
+                // resolved lazily, as referenced entity mapping may be not built yet
+                EntityMeta<T> meta = EntityMeta.of(type);
+                if (meta.key == null) {
+                    throw new SQLException("Referenced " + type.getCanonicalName() + " has no primary key field");
+                }
+
+                Object id = meta.codecs.get(meta.key).read(rs, i);
+                if (id == null) {
+                    return null;
+                }
+
+                try {
+                    T stub = type.newInstance();
+                    meta.key.set(stub, id);
+                    return stub;
+                } catch (ReflectiveOperationException e) {
+                    throw new SQLException("Can't instantiate reference to " + type.getCanonicalName(), e);
+                }
+            }
+        };
+    }
+
+    private static <T> Codec<T[]> array(String sqlType, Class<T> component, Function<Object, T> element) {
+        return of((ps, i, v) -> ps.setArray(i, ps.getConnection().createArrayOf(sqlType, v)), (rs, i) -> {
+            Object[] a = readArray(rs, i);
+            if (a == null) {
+                return null;
+            }
+
+            T[] values = (T[]) java.lang.reflect.Array.newInstance(component, a.length);
+            for (int j = 0; j < a.length; j++) {
+                values[j] = (a[j] == null) ? null : element.apply(a[j]);
+            }
+            return values;
+        });
+    }
+
+    private static Object[] readArray(ResultSet rs, int i) throws SQLException {
+        Array a = rs.getArray(i);
+        if (a == null) {
+            return null;
+        }
+
+        try {
+            return (Object[]) a.getArray();
+        } finally {
+            a.free();
+        }
+    }
+
+    private static <T> Codec<T> of(Binder<T> binder, Reader<T> reader) {
+        return new Codec<T>() {
+            @Override
+            public void bind(PreparedStatement ps, int i, T value) throws SQLException {
+                binder.bind(ps, i, value);
+            }
+
+            @Override
+            public T read(ResultSet rs, int i) throws SQLException {
+                return reader.read(rs, i);
+            }
+        };
+    }
+
+    @FunctionalInterface
+    private interface Binder<T> {
+        void bind(PreparedStatement ps, int i, T value) throws SQLException;
+    }
+
+    @FunctionalInterface
+    private interface Reader<T> {
+        T read(ResultSet rs, int i) throws SQLException;
+    }
+}
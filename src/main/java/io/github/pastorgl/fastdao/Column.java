@@ -13,4 +13,11 @@ public @interface Column {
     Class<? extends StoreConverter> store() default StoreConverter.NullConverter.class;
 
     Class<? extends RetrieveConverter> retrieve() default RetrieveConverter.NullConverter.class;
+
+    /**
+     * Lazy columns aren't selected by {@link FastDAO#getAll()} and {@link FastDAO#getByPK(Object)}, use
+     * {@link FastDAO#fetch(java.util.List, String...)} to load them afterwards. Updates keep the current value of a lazy
+     * column that wasn't fetched, unless its field is set
+     */
+    boolean lazy() default false;
 }
@@ -0,0 +1,349 @@
+package io.github.pastorgl.fastdao;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Mapping of a {@link FastEntity} subclass to its table, resolved once per class and shared by all DAOs.
+ *
+ * @param <E> {@link FastEntity} subclass
+ */
+final class EntityMeta<E extends FastEntity> {
+    private static final Map<Class<?>, EntityMeta<?>> REGISTRY = new ConcurrentHashMap<>();
+
+    /**
+     * {@link FastEntity} subclass
+     */
+    final Class<E> persistentClass;
+    /**
+     * Physical table name
+     */
+    final String tableName;
+    /**
+     * Physical name of Primary Key column
+     */
+    final String pkName;
+    /**
+     * Persistent class field names to physical column names mapping
+     */
+    final Map<String, String> fwMapping;
+    /**
+     * Physical column names to persistent class field names mapping
+     */
+    final Map<String, String> revMapping;
+    /**
+     * Persistent class fields cache
+     */
+    final Map<String, Field> fields;
+    /**
+     * Persistent class field annotations cache
+     */
+    final Map<Field, Column> columns;
+    /**
+     * Primary key field, if any
+     */
+    final Field key;
+    /**
+     * Converter instances of fields that have them
+     */
+    final Map<Field, StoreConverter> storeConverters;
+    final Map<Field, RetrieveConverter> retrieveConverters;
+    /**
+     * Codecs of fields, resolved by their declared types
+     */
+    final Map<Field, Codec<Object>> codecs;
+    /**
+     * Physical names of all non-lazy columns, comma-separated
+     */
+    final String eagerColumns;
+    /**
+     * Estimated size of one row, in bytes
+     */
+    final int rowBytes;
+    /**
+     * Lower-cased physical column names to fields, for drivers that change case of column labels
+     */
+    private final Map<String, Field> byLowerColumn;
+    /**
+     * JDBC types of columns as reported by the database, set by {@link #validate(Connection)}
+     */
+    private volatile Map<Field, Integer> sqlTypes = Collections.emptyMap();
+
+    private EntityMeta(Class<E> persistentClass) {
+        this.persistentClass = persistentClass;
+
+        if (persistentClass.isAnnotationPresent(Table.class)) {
+            tableName = persistentClass.getAnnotation(Table.class).value();
+        } else {
+            tableName = persistentClass.getSimpleName();
+        }
+
+        Map<String, String> fwMapping = new HashMap<>();
+        Map<String, String> revMapping = new HashMap<>();
+        Map<String, Field> fields = new HashMap<>();
+        Map<Field, Column> columns = new HashMap<>();
+        Map<Field, StoreConverter> storeConverters = new HashMap<>();
+        Map<Field, RetrieveConverter> retrieveConverters = new HashMap<>();
+
+        String pkName = null;
+        for (Field field : persistentClass.getDeclaredFields()) {
+            if ((field.getModifiers() & Modifier.STATIC) == 0) {
+                field.setAccessible(true);
+                String fieldName = field.getName();
+
+                fields.put(fieldName, field);
+
+                String columnName;
+                if (field.isAnnotationPresent(Column.class)) {
+                    Column column = field.getAnnotation(Column.class);
+                    columnName = column.value();
+                    revMapping.put(columnName, fieldName);
+                    fwMapping.put(fieldName, columnName);
+
+                    columns.put(field, column);
+
+                    try {
+                        if (column.store() != StoreConverter.NullConverter.class) {
+                            storeConverters.put(field, column.store().newInstance());
+                        }
+                        if (column.retrieve() != RetrieveConverter.NullConverter.class) {
+                            retrieveConverters.put(field, column.retrieve().newInstance());
+                        }
+                    } catch (ReflectiveOperationException e) {
+                        throw new FastDAOException("can't instantiate converter of " + persistentClass.getCanonicalName() + "." + fieldName, e);
+                    }
+                } else {
+                    columnName = fieldName;
+                }
+
+                if (field.isAnnotationPresent(PK.class)) {
+                    pkName = columnName;
+                }
+            }
+        }
+
+        if (pkName == null) {
+            pkName = tableName + "_id";
+        }
+        this.pkName = pkName;
+
+        this.fwMapping = Collections.unmodifiableMap(fwMapping);
+        this.revMapping = Collections.unmodifiableMap(revMapping);
+        this.fields = Collections.unmodifiableMap(fields);
+        this.columns = Collections.unmodifiableMap(columns);
+        this.storeConverters = Collections.unmodifiableMap(storeConverters);
+        this.retrieveConverters = Collections.unmodifiableMap(retrieveConverters);
+        this.key = fields.get(getRevMapping(pkName));
+
+        StringJoiner eager = new StringJoiner(",");
+        Map<String, Field> byLowerColumn = new HashMap<>();
+        Map<Field, Codec<Object>> codecs = new HashMap<>();
+        int rowBytes = 0;
+        for (Field field : fields.values()) {
+            codecs.put(field, Codecs.forType(field.getType()));
+            String columnName = getFwMapping(field.getName());
+            if (!columns.containsKey(field) || !columns.get(field).lazy()) {
+                eager.add(columnName);
+            }
+            byLowerColumn.put(columnName.toLowerCase(Locale.ROOT), field);
+            rowBytes += estimateBytes(field.getType());
+        }
+        this.eagerColumns = eager.toString();
+        this.byLowerColumn = byLowerColumn;
+        this.codecs = Collections.unmodifiableMap(codecs);
+        this.rowBytes = rowBytes;
+    }
+
+    static <E extends FastEntity> EntityMeta<E> of(Class<E> persistentClass) {
+        return (EntityMeta<E>) REGISTRY.computeIfAbsent(persistentClass, c -> new EntityMeta<>(persistentClass));
+    }
+
+    String getRevMapping(String columnName) {
+        if (revMapping.containsKey(columnName)) {
+            return revMapping.get(columnName);
+        }
+
+        return columnName;
+    }
+
+    String getFwMapping(String fieldName) {
+        if (fwMapping.containsKey(fieldName)) {
+            return fwMapping.get(fieldName);
+        }
+
+        return fieldName;
+    }
+
+    /**
+     * @param columnLabel column label of query result
+     * @return matching field, or null if there's none
+     */
+    Field fieldForColumn(String columnLabel) {
+        Field field = fields.get(getRevMapping(columnLabel));
+        if (field == null) {
+            field = byLowerColumn.get(columnLabel.toLowerCase(Locale.ROOT));
+        }
+
+        return field;
+    }
+
+    /**
+     * @return JDBC type of field's column if it was validated, or null
+     */
+    Integer sqlType(Field field) {
+        return sqlTypes.get(field);
+    }
+
+    /**
+     * Check that all mapped columns exist in the table and have JDBC types compatible with their fields. Entities
+     * annotated with {@link Result} aren't backed by a table and aren't checked
+     *
+     * @return list of problems, empty if none
+     */
+    List<String> validate(Connection con) throws SQLException {
+        List<String> problems = new ArrayList<>();
+        if (persistentClass.isAnnotationPresent(Result.class)) {
+            return problems;
+        }
+
+        String schema = null;
+        String table = tableName.replace("\"", "");
+        int dot = table.lastIndexOf('.');
+        if (dot >= 0) {
+            schema = table.substring(0, dot);
+            table = table.substring(dot + 1);
+        }
+
+        DatabaseMetaData md = con.getMetaData();
+        String escape = md.getSearchStringEscape();
+        String schemaPattern = escape(schema, escape);
+        Map<String, Integer> dbColumns = new HashMap<>();
+        for (String t : new String[]{table, table.toUpperCase(Locale.ROOT), table.toLowerCase(Locale.ROOT)}) {
+            try (ResultSet rs = md.getColumns(null, schemaPattern, escape(t, escape), null)) {
+                while (rs.next()) {
+                    dbColumns.put(rs.getString("COLUMN_NAME").toLowerCase(Locale.ROOT), rs.getInt("DATA_TYPE"));
+                }
+            }
+            if (!dbColumns.isEmpty()) {
+                break;
+            }
+        }
+
+        String entity = persistentClass.getCanonicalName();
+        if (dbColumns.isEmpty()) {
+            problems.add("table " + tableName + " of " + entity + " doesn't exist");
+            return problems;
+        }
+
+        Map<Field, Integer> sqlTypes = new HashMap<>();
+        for (Field field : fields.values()) {
+            String columnName = getFwMapping(field.getName());
+            Integer sqlType = dbColumns.get(columnName.toLowerCase(Locale.ROOT));
+            if (sqlType == null) {
+                problems.add("column " + tableName + "." + columnName + " of " + entity + "." + field.getName() + " doesn't exist");
+                continue;
+            }
+
+            sqlTypes.put(field, sqlType);
+            if (!storeConverters.containsKey(field) && !retrieveConverters.containsKey(field) && !compatible(field.getType(), sqlType)) {
+                problems.add("column " + tableName + "." + columnName + " of JDBC type " + sqlType + " is incompatible with "
+                        + entity + "." + field.getName() + " of type " + field.getType().getCanonicalName());
+            }
+        }
+        this.sqlTypes = Collections.unmodifiableMap(sqlTypes);
+
+        return problems;
+    }
+
+    /**
+     * Escape LIKE wildcards in a name to use it as a metadata search pattern, so underscores match only themselves
+     */
+    private static String escape(String name, String escape) {
+        if ((name == null) || (escape == null) || escape.isEmpty()) {
+            return name;
+        }
+
+        return name.replace(escape, escape + escape).replace("_", escape + "_").replace("%", escape + "%");
+    }
+
+    /**
+     * Rough size of a column value of given type, for batch sizing
+     */
+    private static int estimateBytes(Class<?> type) {
+        if ((type == long.class) || (type == Long.class) || (type == double.class) || (type == Double.class)) {
+            return 8;
+        }
+        if ((type == int.class) || (type == Integer.class) || (type == float.class) || (type == Float.class)) {
+            return 4;
+        }
+        if ((type == short.class) || (type == Short.class) || (type == char.class) || (type == Character.class)) {
+            return 2;
+        }
+        if ((type == byte.class) || (type == Byte.class) || (type == boolean.class) || (type == Boolean.class)) {
+            return 1;
+        }
+        if (type.isEnum() || Date.class.isAssignableFrom(type) || type.getName().startsWith("java.time.")) {
+            return 8;
+        }
+        if ((type == String.class) || (type == UUID.class) || FastEntity.class.isAssignableFrom(type)) {
+            return 32;
+        }
+
+        // arrays, collections, LOBs and everything else
+        return 128;
+    }
+
+    /**
+     * Whether a field of Java type can be stored to and retrieved from a column of JDBC type. Types without
+     * a known mapping are considered compatible
+     */
+    private static boolean compatible(Class<?> type, int sqlType) {
+        if ((sqlType == Types.OTHER) || (sqlType == Types.JAVA_OBJECT)) {
+            return true;
+        }
+
+        boolean integer = (sqlType == Types.BIGINT) || (sqlType == Types.INTEGER) || (sqlType == Types.SMALLINT) || (sqlType == Types.TINYINT);
+        boolean decimal = (sqlType == Types.NUMERIC) || (sqlType == Types.DECIMAL);
+        boolean floating = (sqlType == Types.DOUBLE) || (sqlType == Types.FLOAT) || (sqlType == Types.REAL);
+        boolean character = (sqlType == Types.CHAR) || (sqlType == Types.VARCHAR) || (sqlType == Types.LONGVARCHAR)
+                || (sqlType == Types.NCHAR) || (sqlType == Types.NVARCHAR) || (sqlType == Types.LONGNVARCHAR)
+                || (sqlType == Types.CLOB) || (sqlType == Types.NCLOB);
+        boolean temporal = (sqlType == Types.DATE) || (sqlType == Types.TIME) || (sqlType == Types.TIMESTAMP)
+                || (sqlType == Types.TIME_WITH_TIMEZONE) || (sqlType == Types.TIMESTAMP_WITH_TIMEZONE);
+
+        if ((type == long.class) || (type == Long.class) || (type == int.class) || (type == Integer.class)
+                || (type == short.class) || (type == Short.class) || (type == byte.class) || (type == Byte.class)) {
+            return integer || decimal;
+        }
+        if ((type == double.class) || (type == Double.class) || (type == float.class) || (type == Float.class)
+                || (type == BigDecimal.class)) {
+            return integer || decimal || floating;
+        }
+        if ((type == boolean.class) || (type == Boolean.class)) {
+            return (sqlType == Types.BOOLEAN) || (sqlType == Types.BIT);
+        }
+        if ((type == String.class) || type.isEnum()) {
+            return character;
+        }
+        if (Date.class.isAssignableFrom(type)) {
+            return temporal;
+        }
+        if (type == byte[].class) {
+            return (sqlType == Types.BINARY) || (sqlType == Types.VARBINARY) || (sqlType == Types.LONGVARBINARY)
+                    || (sqlType == Types.BLOB);
+        }
+        if (type.isArray()) {
+            return sqlType == Types.ARRAY;
+        }
+
+        return true;
+    }
+}
@@ -4,8 +4,24 @@ import javax.sql.DataSource;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
+import java.math.BigDecimal;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
 
 /**
  * Abstract low-level DAO designed for bulk/batch operations.
@@ -14,265 +30,555 @@ import java.util.*;
  * @param <E> {@link FastEntity} subclass
  */
 public abstract class FastDAO<E extends FastEntity> {
+    static private final int INITIAL_CAPACITY = 1024;
+    /**
+     * Max number of values staged by {@link #updateBulk(List)} before applying them
+     */
+    static private final int BULK_CHUNK_VALUES = 1_000_000;
+    static private final AtomicLong tempTables = new AtomicLong();
+
     static private int batchSize = 500;
+    static private int retries = 3;
+    static private long retryBackoff = 100L;
     static private DataSource ds;
+    static private QueryCache queryCache;
+    static private boolean readCoalescing = false;
+    static private int tempTableThreshold = 10_000;
+    /**
+     * Reads being executed right now, for {@link #setReadCoalescing(boolean)}
+     */
+    static private final Map<QueryCache.Key, Flight> inFlight = new ConcurrentHashMap<>();
+    /**
+     * Mapping of the persistent class, shared by all DAOs of the same class
+     */
+    private final EntityMeta<E> meta;
     /**
      * Physical name of Primary Key column
      */
-    private String pkName;
+    private final String pkName;
     /**
      * Physical table name
      */
-    private String tableName;
+    private final String tableName;
     /**
      * {@link FastEntity} subclass
      */
-    private Class<E> persistentClass;
+    private final Class<E> persistentClass;
     /**
-     * Persistent class field names to physical column names mapping
+     * Persistent class fields cache
      */
-    private Map<String, String> fwMapping = new HashMap<>();
+    private final Map<String, Field> fields;
     /**
-     * Physical column names to persistent class field names mapping
+     * Batch size policy of this DAO, or null to use {@link #setBatchSize(int)}
      */
-    private Map<String, String> revMapping = new HashMap<>();
+    private BatchSizing batchSizing;
     /**
-     * Persistent class fields cache
+     * Whether batch insert writes primary keys set on instances instead of having the database generate them
      */
-    private Map<String, Field> fields = new HashMap<>();
+    private boolean insertKeys = false;
     /**
-     * Persistent class field annotations cache
+     * DataSource of this DAO, or null to use {@link #setDataSource(DataSource)}
      */
-    private Map<Field, Column> columns = new HashMap<>();
+    private final DataSource dataSource;
 
     {
         persistentClass = (Class<E>) ((ParameterizedType) getClass()
                 .getGenericSuperclass()).getActualTypeArguments()[0];
 
-        if (persistentClass.isAnnotationPresent(Table.class)) {
-            tableName = persistentClass.getAnnotation(Table.class).value();
-        } else {
-            tableName = persistentClass.getSimpleName();
-        }
+        meta = EntityMeta.of(persistentClass);
+        pkName = meta.pkName;
+        tableName = meta.tableName;
+        fields = meta.fields;
+    }
+
+    protected FastDAO() {
+        this(null);
+    }
+
+    /**
+     * @param dataSource DataSource to use by this DAO instead of global one, e.g. one of database shards, see
+     *                   {@link ShardedDAO}
+     */
+    protected FastDAO(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
 
-        for (Field field : persistentClass.getDeclaredFields()) {
-            if ((field.getModifiers() & Modifier.STATIC) == 0) {
-                field.setAccessible(true);
-                String fieldName = field.getName();
+    static public void setDataSource(DataSource ds) {
+        FastDAO.ds = ds;
+    }
 
-                fields.put(fieldName, field);
+    static protected DataSource getDataSource() {
+        return ds;
+    }
 
-                String columnName;
-                if (field.isAnnotationPresent(Column.class)) {
-                    Column column = field.getAnnotation(Column.class);
-                    columnName = column.value();
-                    revMapping.put(columnName, fieldName);
-                    fwMapping.put(fieldName, columnName);
+    static public void setBatchSize(int batchSize) {
+        FastDAO.batchSize = batchSize;
+    }
 
-                    columns.put(field, column);
-                } else {
-                    columnName = fieldName;
-                }
+    /**
+     * Resolve mapping of entity classes ahead of time instead of on first DAO instantiation
+     *
+     * @param entityClasses {@link FastEntity} subclasses
+     */
+    @SafeVarargs
+    static public void warmUp(Class<? extends FastEntity>... entityClasses) {
+        for (Class<? extends FastEntity> entityClass : entityClasses) {
+            EntityMeta.of(entityClass);
+        }
+    }
+
+    /**
+     * Resolve mapping of entity classes and check it against database metadata: tables and columns of all fields
+     * must exist, and column types must be compatible with field types (fields with converters are checked for
+     * existence only). Entities without {@link Table} annotation are checked against the table named after their
+     * class, and entities annotated with {@link Result} are only resolved
+     *
+     * @param entityClasses {@link FastEntity} subclasses
+     * @throws FastDAOException listing all found problems
+     */
+    @SafeVarargs
+    static public void validate(Class<? extends FastEntity>... entityClasses) {
+        Connection con = null;
+
+        try {
+            List<String> problems = new ArrayList<>();
+
+            con = ds.getConnection();
+            for (Class<? extends FastEntity> entityClass : entityClasses) {
+                problems.addAll(EntityMeta.of(entityClass).validate(con));
+            }
 
-                if (field.isAnnotationPresent(PK.class)) {
-                    pkName = columnName;
+            if (!problems.isEmpty()) {
+                throw new IllegalStateException(String.join("; ", problems));
+            }
+        } catch (Exception e) {
+            throw new FastDAOException("validate", e);
+        } finally {
+            if (con != null) {
+                try {
+                    con.close();
+                } catch (Exception e) {
+                    throw new FastDAOException("can't close Connection", e);
                 }
             }
         }
+    }
 
-        if (pkName == null) {
-            pkName = tableName + "_id";
-        }
+    /**
+     * Set batch size policy of this DAO, overriding {@link #setBatchSize(int)}
+     *
+     * @param batchSizing {@link BatchSizing#fixed(int)}, {@link BatchSizing#adaptive(int, int, long)} or custom
+     *                    policy, or null to revert to global batch size
+     */
+    protected void setBatchSizing(BatchSizing batchSizing) {
+        this.batchSizing = batchSizing;
     }
 
-    static public void setDataSource(DataSource ds) {
-        FastDAO.ds = ds;
+    /**
+     * Make batch insert of this DAO write primary keys set on instances, which then must be set on all of them.
+     * By default, keys are generated by the database. {@link ShardedDAO} sets this for DAOs of its shards
+     *
+     * @param insertKeys true to write primary keys
+     */
+    protected void setInsertKeys(boolean insertKeys) {
+        this.insertKeys = insertKeys;
     }
 
-    static protected DataSource getDataSource() {
-        return ds;
+    /**
+     * Set retry policy for batches failed with a transient error, such as deadlock, serialization failure or
+     * dropped connection
+     *
+     * @param retries      max number of retries of a single batch, 0 to disable
+     * @param backoffMillis delay before first retry, doubled on each subsequent one
+     */
+    static public void setRetries(int retries, long backoffMillis) {
+        FastDAO.retries = retries;
+        FastDAO.retryBackoff = backoffMillis;
     }
 
-    static public void setBatchSize(int batchSize) {
-        FastDAO.batchSize = batchSize;
+    /**
+     * Enable caching of {@link #select(String, Object...)} results for all DAOs
+     *
+     * @param queryCache cache instance, or null to disable caching
+     */
+    static public void setQueryCache(QueryCache queryCache) {
+        FastDAO.queryCache = queryCache;
+    }
+
+    /**
+     * Enable coalescing of concurrent identical reads for all DAOs. While a {@link #select(String, Object...)} (or
+     * {@link #getByPK(Object)}) is executed, other callers of the same query with equal arguments wait for it instead
+     * of querying the database themselves, and receive copies of its result. Works with or without
+     * {@link #setQueryCache(QueryCache)}
+     *
+     * @param readCoalescing true to enable
+     */
+    static public void setReadCoalescing(boolean readCoalescing) {
+        FastDAO.readCoalescing = readCoalescing;
+    }
+
+    /**
+     * Set the size of {@link List} arguments of IN predicates, above which their values are loaded into a temporary
+     * table and the predicate becomes IN (SELECT ...) from it, instead of being unfolded into a placeholder per
+     * value. Lists of integers, strings, enums, UUIDs and BigDecimals are supported. Such queries are neither cached
+     * nor coalesced. Inside a caller's transaction lists are always unfolded, as creating a table may commit it
+     *
+     * @param tempTableThreshold max list size to unfold, or 0 to always unfold. Default is 10000
+     */
+    static public void setTempTableThreshold(int tempTableThreshold) {
+        FastDAO.tempTableThreshold = tempTableThreshold;
+    }
+
+    /**
+     * Parse a query template once, to call it many times with {@link #select(Query, Object...)}
+     *
+     * @param sql any SQL Query with optional ? replaceable parameters, see {@link #select(String, Object...)}
+     * @return thread-safe template
+     */
+    static public Query query(String sql) {
+        return Query.parse(sql);
     }
 
     /**
      * Call SELECT that returns a lizt of &lt;E&gt; instances
      *
      * @param query any SQL Query whose result is a list of &lt;E&gt;, optionally with ? for replaceable parameters.
-     *              Use backslash to escape question marks
+     *              Use backslash to escape question marks. Question marks inside quotes and comments aren't
+     *              parameters. Parsed templates of frequent queries are kept for reuse
      * @param args  objects, whose values will be used as source of replaceable parameters. If object is an array or
      *              {@link List}, it'll be unfolded
-     * @return list of &lt;E&gt;
+     * @return list of &lt;E&gt;. If {@link #setQueryCache(QueryCache)} or {@link #setReadCoalescing(boolean)} is set,
+     * shared results are returned as copies, with arrays, dates and collections copied as well
      */
     protected List<E> select(String query, Object... args) {
-        Connection con = null;
-        PreparedStatement ps = null;
-        ResultSet rs = null;
+        return select(Query.of(query), args);
+    }
 
-        try {
-            if (args.length != 0) {
-                List<Object> expl = new ArrayList<>(args.length);
-
-                StringBuilder sb = new StringBuilder();
-
-                int r = 0;
-                for (Object a : args) {
-                    int q;
-                    boolean found = false;
-                    do {
-                        q = query.indexOf('?', r);
-                        if (q < 0) {
-                            throw new IllegalArgumentException("supplied query and replaceable arguments don't match");
-                        }
-                        if ((q > 0) && (query.charAt(q - 1) == '\\')) {
-                            r = q + 1;
-                        } else {
-                            found = true;
-                        }
-                    } while (!found);
-                    sb.append(query, r, q);
-                    r = q + 1;
+    /**
+     * Call SELECT that returns a lizt of &lt;E&gt; instances, using a template parsed beforehand
+     *
+     * @param query query template, see {@link #query(String)}
+     * @param args  objects, whose values will be used as source of replaceable parameters, see
+     *              {@link #select(String, Object...)}
+     * @return list of &lt;E&gt;
+     */
+    protected List<E> select(Query query, Object... args) {
+        QueryCache cache = queryCache;
+        boolean coalesce = readCoalescing;
+        if (((cache == null) && !coalesce) || hasKeyTables(query, args)) {
+            return selectEntities(query, args);
+        }
 
-                    if (a instanceof Object[]) {
-                        a = Collections.singletonList(a);
-                    }
-                    if (a instanceof List) {
-                        List<Object> aa = (List<Object>) a;
-                        int s = aa.size();
-                        sb.append('(');
-                        for (int i = 0; i < s; i++) {
-                            expl.add(aa.get(i));
-                            if (i > 0) {
-                                sb.append(',');
-                            }
-                            sb.append('?');
-                        }
-                        sb.append(')');
-                    } else {
-                        expl.add(a);
-                        sb.append('?');
-                    }
-                }
+        QueryCache.Key key = new QueryCache.Key(persistentClass, dataSource(), query.getSql(), args);
+        if (cache != null) {
+            List<E> cached = (List<E>) cache.get(key);
+            if (cached != null) {
+                return copy(cached);
+            }
+        }
 
-                sb.append(query.substring(r));
+        if (!coalesce) {
+            return selectCaching(cache, key, query, args);
+        }
 
-                query = sb.toString();
-                args = expl.toArray();
+        Flight flight = new Flight(QueryCache.tables(query.getSql(), tableName));
+        Flight leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            try {
+                return copy((List<E>) leader.result.join());
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new FastDAOException("select - coalesced", (Exception) cause);
             }
+        }
+
+        try {
+            List<E> lst = selectCaching(cache, key, query, args);
+            flight.result.complete(copy(lst));
+
+            return lst;
+        } catch (RuntimeException | Error e) {
+            flight.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    private List<E> selectCaching(QueryCache cache, QueryCache.Key key, Query query, Object[] args) {
+        if (cache == null) {
+            return selectEntities(query, args);
+        }
+
+        String[] tables = QueryCache.tables(query.getSql(), tableName);
+        long[] stamp = cache.stamp(tables);
+        List<E> lst = selectEntities(query, args);
+        cache.put(key, tables, stamp, copy(lst));
 
+        return lst;
+    }
+
+    private List<E> selectEntities(Query query, Object[] args) {
+        return execute("select", query, args, false, rs -> {
             List<E> lst = new ArrayList<>();
+            readEntities(rs, lst::add);
 
-            con = ds.getConnection();
-            ps = con.prepareStatement(query);
+            return lst;
+        });
+    }
 
-            int c = 1;
-            for (Object a : args) {
-                setObject(ps, c++, a);
+    private void readEntities(ResultSet rs, Consumer<E> sink) throws Exception {
+        ResultSetMetaData md = rs.getMetaData();
+        int cnt = md.getColumnCount();
+        Field[] resultFields = new Field[cnt + 1];
+        RetrieveConverter[] converters = new RetrieveConverter[cnt + 1];
+        Codec<Object>[] codecs = new Codec[cnt + 1];
+        for (int i = 1; i <= cnt; i++) {
+            String colName = md.getColumnLabel(i);
+            Field field = meta.fieldForColumn(colName);
+            if (field == null) {
+                throw new IllegalStateException("Column " + colName + " of query result has no matching field in "
+                        + persistentClass.getCanonicalName());
             }
 
-            rs = ps.executeQuery();
+            resultFields[i] = field;
+            converters[i] = meta.retrieveConverters.get(field);
+            codecs[i] = meta.codecs.get(field);
+        }
 
-            ResultSetMetaData md = rs.getMetaData();
-            int cnt = md.getColumnCount();
-            while (rs.next()) {
-                E e = persistentClass.newInstance();
+        // shared by all rows, so updates know which columns they may write
+        Set<Field> loaded = new HashSet<>(Arrays.asList(resultFields).subList(1, cnt + 1));
+        loaded = loaded.containsAll(fields.values()) ? null : Collections.unmodifiableSet(loaded);
 
-                for (int i = 1; i <= cnt; i++) {
-                    String colName = md.getColumnLabel(i);
-                    Field field = fields.get(getRevMapping(colName));
-                    Class<?> type = field.getType();
+        while (rs.next()) {
+            E e = persistentClass.newInstance();
+            e.loadedFields = loaded;
 
-                    if (type.isEnum()) {
-                        field.set(e, Enum.valueOf((Class<Enum>) type, rs.getString(i)));
-                    } else {
-                        convertFromRetrieve(field, e, rs.getObject(i));
-                    }
+            for (int i = 1; i <= cnt; i++) {
+                if (converters[i] != null) {
+                    resultFields[i].set(e, converters[i].retrieve(rs.getObject(i)));
+                } else {
+                    resultFields[i].set(e, codecs[i].read(rs, i));
                 }
-
-                lst.add(e);
             }
 
-            return lst;
-        } catch (Exception e) {
-            throw new FastDAOException("select", e);
-        } finally {
-            closeResultSet(rs);
-            closeStatement(ps);
-            closeConnection(con);
+            sink.accept(e);
         }
     }
 
     /**
-     * Batch insert of a list of &lt;E&gt; instances
+     * Call SELECT and collect its first column into an array of primitive longs, without &lt;E&gt; instantiation.
+     * SQL NULLs are returned as 0
      *
-     * @param objects &lt;E&gt; instances
+     * @param query any SQL Query, see {@link #select(String, Object...)}
+     * @param args  objects, whose values will be used as source of replaceable parameters
+     * @return first column values
      */
-    protected void insert(List<E> objects) {
-        if (objects.size() == 0) {
-            return;
-        }
+    protected long[] selectLongs(String query, Object... args) {
+        return execute("select - longs", Query.of(query), args, true, rs -> {
+            long[] values = new long[INITIAL_CAPACITY];
+            int n = 0;
+            while (rs.next()) {
+                if (n == values.length) {
+                    values = Arrays.copyOf(values, n << 1);
+                }
+                values[n++] = rs.getLong(1);
+            }
 
-        Connection con = null;
-        PreparedStatement ps = null;
+            return Arrays.copyOf(values, n);
+        });
+    }
 
-        try {
-            StringBuilder sb = new StringBuilder("INSERT INTO " + tableName + " (");
+    /**
+     * Call SELECT and collect its first column into an array of primitive ints, without &lt;E&gt; instantiation.
+     * SQL NULLs are returned as 0
+     *
+     * @param query any SQL Query, see {@link #select(String, Object...)}
+     * @param args  objects, whose values will be used as source of replaceable parameters
+     * @return first column values
+     */
+    protected int[] selectInts(String query, Object... args) {
+        return execute("select - ints", Query.of(query), args, true, rs -> {
+            int[] values = new int[INITIAL_CAPACITY];
+            int n = 0;
+            while (rs.next()) {
+                if (n == values.length) {
+                    values = Arrays.copyOf(values, n << 1);
+                }
+                values[n++] = rs.getInt(1);
+            }
 
-            int k = 0;
-            for (Field f : fields.values()) {
-                String colName = getFwMapping(f.getName());
-                if (!pkName.equals(colName)) {
-                    if (k++ > 0) {
-                        sb.append(",");
-                    }
-                    sb.append(colName);
+            return Arrays.copyOf(values, n);
+        });
+    }
+
+    /**
+     * Call SELECT and collect its first column into an array of primitive doubles, without &lt;E&gt;
+     * instantiation. SQL NULLs are returned as 0
+     *
+     * @param query any SQL Query, see {@link #select(String, Object...)}
+     * @param args  objects, whose values will be used as source of replaceable parameters
+     * @return first column values
+     */
+    protected double[] selectDoubles(String query, Object... args) {
+        return execute("select - doubles", Query.of(query), args, true, rs -> {
+            double[] values = new double[INITIAL_CAPACITY];
+            int n = 0;
+            while (rs.next()) {
+                if (n == values.length) {
+                    values = Arrays.copyOf(values, n << 1);
                 }
+                values[n++] = rs.getDouble(1);
             }
 
-            sb.append(") VALUES ");
-            int length = fields.size();
-            int size = objects.size();
+            return Arrays.copyOf(values, n);
+        });
+    }
 
-            sb.append("(");
-            for (int j = 1; j < length; j++) {
-                if (j > 1) {
-                    sb.append(",");
+    /**
+     * Call SELECT and stream its first column as primitive longs to the consumer, row by row
+     *
+     * @param consumer receives first column values. SQL NULLs are passed as 0
+     * @param query    any SQL Query, see {@link #select(String, Object...)}
+     * @param args     objects, whose values will be used as source of replaceable parameters
+     */
+    protected void selectLongs(LongConsumer consumer, String query, Object... args) {
+        execute("select - longs", Query.of(query), args, true, rs -> {
+            while (rs.next()) {
+                consumer.accept(rs.getLong(1));
+            }
+
+            return null;
+        });
+    }
+
+    /**
+     * Call SELECT and stream its first column as primitive ints to the consumer, row by row
+     *
+     * @param consumer receives first column values. SQL NULLs are passed as 0
+     * @param query    any SQL Query, see {@link #select(String, Object...)}
+     * @param args     objects, whose values will be used as source of replaceable parameters
+     */
+    protected void selectInts(IntConsumer consumer, String query, Object... args) {
+        execute("select - ints", Query.of(query), args, true, rs -> {
+            while (rs.next()) {
+                consumer.accept(rs.getInt(1));
+            }
+
+            return null;
+        });
+    }
+
+    /**
+     * Call SELECT and stream its first column as primitive doubles to the consumer, row by row
+     *
+     * @param consumer receives first column values. SQL NULLs are passed as 0
+     * @param query    any SQL Query, see {@link #select(String, Object...)}
+     * @param args     objects, whose values will be used as source of replaceable parameters
+     */
+    protected void selectDoubles(DoubleConsumer consumer, String query, Object... args) {
+        execute("select - doubles", Query.of(query), args, true, rs -> {
+            while (rs.next()) {
+                consumer.accept(rs.getDouble(1));
+            }
+
+            return null;
+        });
+    }
+
+    /**
+     * Call SELECT and stream all its columns as primitive longs to the consumer, row by row. The same array is
+     * reused for every row, so consumer must copy values it wants to retain
+     *
+     * @param consumer receives an array of column values for each row. SQL NULLs are passed as 0
+     * @param query    any SQL Query, see {@link #select(String, Object...)}
+     * @param args     objects, whose values will be used as source of replaceable parameters
+     */
+    protected void selectLongRows(Consumer<long[]> consumer, String query, Object... args) {
+        execute("select - long rows", Query.of(query), args, true, rs -> {
+            long[] row = new long[rs.getMetaData().getColumnCount()];
+            while (rs.next()) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = rs.getLong(i + 1);
                 }
-                sb.append("?");
+                consumer.accept(row);
             }
-            sb.append(")");
 
-            con = ds.getConnection();
-            ps = con.prepareStatement(sb.toString());
-            int b = 0;
-            for (int i = 0; i < size; i++, b++) {
-                k = 1;
-                Object o = objects.get(i);
-                for (Field field : fields.values()) {
-                    if (!pkName.equals(getFwMapping(field.getName()))) {
-                        setObject(ps, k++, convertToStore(field, o));
+            return null;
+        });
+    }
+
+    /**
+     * Batch insert of a list of &lt;E&gt; instances. Each batch is committed separately, see
+     * {@link #insert(List, int, BatchCheckpoint)}
+     *
+     * @param objects &lt;E&gt; instances
+     */
+    protected void insert(List<E> objects) {
+        insert(objects, 0, null);
+    }
+
+    /**
+     * Resumable batch insert of a list of &lt;E&gt; instances. Each batch is committed separately, and batches
+     * failed with a transient error are retried as set by {@link #setRetries(int, long)}. On failure, a
+     * {@link FastDAOBatchException} reports how many instances were committed. If the connection is already in
+     * a transaction, batches are executed in it and left to the caller to commit. Primary keys are generated by the
+     * database, unless {@link #setInsertKeys(boolean)} is set
+     *
+     * @param objects    &lt;E&gt; instances
+     * @param from       index of the first instance to insert, to resume a failed operation
+     * @param checkpoint optional callback called after each committed batch
+     */
+    protected void insert(List<E> objects, int from, BatchCheckpoint checkpoint) {
+        if (objects.size() <= from) {
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder("INSERT INTO " + tableName + " (");
+
+        boolean generateKey = !insertKeys || (meta.key == null);
+        if (!generateKey) {
+            try {
+                for (int i = from; i < objects.size(); i++) {
+                    if (meta.key.get(objects.get(i)) == null) {
+                        throw new IllegalArgumentException("primary key must be set on all instances to insert keys");
                     }
                 }
-                ps.addBatch();
-
-                if (b == batchSize) {
-                    ps.executeBatch();
+            } catch (IllegalAccessException | IllegalArgumentException e) {
+                throw new FastDAOException("insert - batch", e);
+            }
+        }
 
-                    ps.clearBatch();
-                    b = 0;
+        List<Field> values = new ArrayList<>();
+        for (Field f : fields.values()) {
+            String colName = getFwMapping(f.getName());
+            if (!generateKey || !pkName.equals(colName)) {
+                if (values.size() > 0) {
+                    sb.append(",");
                 }
+                sb.append(colName);
+                values.add(f);
             }
-            if (b != 0) {
-                ps.executeBatch();
+        }
+
+        sb.append(") VALUES (");
+        for (int j = 0; j < values.size(); j++) {
+            if (j > 0) {
+                sb.append(",");
             }
-        } catch (Exception e) {
-            throw new FastDAOException("insert - batch", e);
-        } finally {
-            closeStatement(ps);
-            closeConnection(con);
+            sb.append("?");
         }
+        sb.append(")");
+
+        executeBatches("insert - batch", sb.toString(), objects, from, checkpoint, (ps, object) -> {
+            int k = 1;
+            for (Field field : values) {
+                bind(ps, k++, field, convertToStore(ps.getConnection(), field, object));
+            }
+        });
     }
 
     /**
@@ -321,18 +627,18 @@ public abstract class FastDAO<E extends FastEntity> {
             }
             sb.append(")");
 
-            con = ds.getConnection();
+            con = connect();
             ps = con.prepareStatement(sb.toString(), PreparedStatement.RETURN_GENERATED_KEYS);
             k = 1;
             Object key = null;
             Field keyField = null;
             for (Field field : fields.values()) {
                 if (!pkName.equals(getFwMapping(field.getName()))) {
-                    setObject(ps, k++, convertToStore(field, object));
+                    bind(ps, k++, field, convertToStore(con, field, object));
                 } else {
                     keyField = field;
                     if (!generateKey) {
-                        key = convertToStore(keyField, object);
+                        key = convertToStore(con, keyField, object);
                         setObject(ps, k++, key);
                     }
                 }
@@ -358,6 +664,7 @@ public abstract class FastDAO<E extends FastEntity> {
         } catch (Exception e) {
             throw new FastDAOException("insert - single", e);
         } finally {
+            invalidate();
             closeResultSet(rs);
             closeStatement(ps);
             closeConnection(con);
@@ -365,74 +672,227 @@ public abstract class FastDAO<E extends FastEntity> {
     }
 
     /**
-     * Update a list of &lt;E&gt; instances matched by their primary key values
+     * Update a list of &lt;E&gt; instances matched by their primary key values. Each batch is committed
+     * separately, see {@link #update(List, int, BatchCheckpoint)}
      *
      * @param objects &lt;E&gt; instances
      */
     protected void update(List<E> objects) {
-        if (objects.size() == 0) {
+        update(objects, 0, null);
+    }
+
+    /**
+     * Resumable update of a list of &lt;E&gt; instances matched by their primary key values. Each batch is
+     * committed separately, and batches failed with a transient error are retried as set by
+     * {@link #setRetries(int, long)}. On failure, a {@link FastDAOBatchException} reports how many instances were
+     * committed. If the connection is already in a transaction, batches are executed in it and left to the caller
+     * to commit
+     *
+     * @param objects    &lt;E&gt; instances
+     * @param from       index of the first instance to update, to resume a failed operation
+     * @param checkpoint optional callback called after each committed batch
+     */
+    protected void update(List<E> objects, int from, BatchCheckpoint checkpoint) {
+        if (objects.size() <= from) {
             return;
         }
 
-        Connection con = null;
-
-        PreparedStatement ps = null;
+        StringBuilder sb = new StringBuilder("UPDATE " + tableName + " SET (");
 
-        try {
-            StringBuilder sb = new StringBuilder("UPDATE " + tableName + " SET (");
+        Field key = null;
+        List<Field> values = new ArrayList<>();
+        for (Field f : fields.values()) {
+            String colName = getFwMapping(f.getName());
+            if (!colName.equals(pkName)) {
+                if (values.size() > 0) {
+                    sb.append(",");
+                }
+                sb.append(colName);
+                values.add(f);
+            } else {
+                key = f;
+            }
+        }
+
+        Set<Field> partial = partialFields(objects.subList(from, objects.size()));
+        sb.append(") = (");
+        for (int j = 0; j < values.size(); j++) {
+            if (j > 0) {
+                sb.append(",");
+            }
+            Field f = values.get(j);
+            if (partial.contains(f)) {
+                // column that some instances weren't selected with is kept as is for them
+                sb.append("CASE WHEN ? THEN ? ELSE " + getFwMapping(f.getName()) + " END");
+            } else {
+                sb.append("?");
+            }
+        }
+        sb.append(") WHERE " + pkName + "=?");
+
+        Field keyField = key;
+        executeBatches("update - batch", sb.toString(), objects, from, checkpoint, (ps, object) -> {
+            int k = 1;
+            for (Field field : values) {
+                if (partial.contains(field)) {
+                    ps.setBoolean(k++, writes(object, field));
+                }
+                bind(ps, k++, field, convertToStore(ps.getConnection(), field, object));
+            }
+            bind(ps, k, keyField, convertToStore(ps.getConnection(), keyField, object));
+        });
+    }
 
-            int length = fields.size();
+    /**
+     * Set-based update of a list of &lt;E&gt; instances matched by their primary key values. Instances are staged
+     * in chunks into a temporary table with batch inserts, and each chunk is applied with a single UPDATE joined on
+     * primary key, instead of one UPDATE per instance like {@link #update(List)} does. Each chunk is committed
+     * separately. If there are several instances with the same primary key, the last one is applied. Inside a
+     * caller's transaction, falls back to {@link #update(List)}
+     *
+     * @param objects &lt;E&gt; instances
+     */
+    protected void updateBulk(List<E> objects) {
+        if (objects.size() == 0) {
+            return;
+        }
+
+        Connection con = null;
+        Statement st = null;
+        PreparedStatement ps = null;
+        String stage = null;
+        boolean own = false;
+
+        try {
             Field key = null;
-            int k = 0;
+            List<Field> values = new ArrayList<>();
+            List<String> colNames = new ArrayList<>();
             for (Field f : fields.values()) {
                 String colName = getFwMapping(f.getName());
                 if (!colName.equals(pkName)) {
-                    if (k++ > 0) {
-                        sb.append(",");
-                    }
-                    sb.append(colName);
+                    values.add(f);
+                    colNames.add(colName);
                 } else {
                     key = f;
                 }
             }
+            if (values.isEmpty()) {
+                return;
+            }
 
-            sb.append(") = (");
+            String cols = String.join(",", colNames);
 
-            for (int j = 1; j < length; j++) {
-                if (j > 1) {
-                    sb.append(",");
+            // columns that some instances weren't selected with are staged with flags whether to write them
+            Set<Field> partial = partialFields(objects);
+            StringBuilder flags = new StringBuilder();
+            StringBuilder flagTypes = new StringBuilder();
+            for (int j = 0; j < values.size(); j++) {
+                if (partial.contains(values.get(j))) {
+                    flags.append(",fastdao_w" + j);
+                    flagTypes.append(",TRUE AS fastdao_w" + j);
                 }
-                sb.append("?");
             }
-            sb.append(") WHERE " + pkName + "=?");
 
-            con = ds.getConnection();
-            ps = con.prepareStatement(sb.toString());
-            int b = 0;
-            for (int i = 0; i < objects.size(); i++, b++) {
-                Object object = objects.get(i);
-                k = 1;
-                for (Field field : fields.values()) {
-                    if (!getFwMapping(field.getName()).equals(pkName)) {
-                        setObject(ps, k++, convertToStore(field, object));
+            con = connect();
+            // DDL of the staging table would commit the caller's transaction on some databases
+            if (!con.getAutoCommit()) {
+                closeConnection(con);
+                con = null;
+
+                update(objects);
+                return;
+            }
+            st = con.createStatement();
+
+            stage = "fastdao_stage_" + tempTables.incrementAndGet();
+            st.execute("CREATE LOCAL TEMPORARY TABLE " + stage + " AS SELECT " + pkName + "," + cols
+                    + flagTypes + " FROM " + tableName + " WHERE 1=0");
+            st.execute("CREATE INDEX " + stage + "_pk ON " + stage + " (" + pkName + ")");
+
+            StringBuilder sb = new StringBuilder("UPDATE " + tableName);
+            if ("PostgreSQL".equals(con.getMetaData().getDatabaseProductName())) {
+                sb.append(" t SET ");
+                for (int j = 0; j < colNames.size(); j++) {
+                    if (j > 0) {
+                        sb.append(",");
                     }
+                    sb.append(colNames.get(j) + "=" + staged(partial, values.get(j), j, "s." + colNames.get(j), "t." + colNames.get(j)));
+                }
+                sb.append(" FROM " + stage + " s WHERE t." + pkName + "=s." + pkName);
+            } else {
+                sb.append(" SET (" + cols + ") = (SELECT ");
+                for (int j = 0; j < colNames.size(); j++) {
+                    if (j > 0) {
+                        sb.append(",");
+                    }
+                    sb.append(staged(partial, values.get(j), j, "s." + colNames.get(j), tableName + "." + colNames.get(j)));
+                }
+                sb.append(" FROM " + stage + " s WHERE s." + pkName + "=" + tableName + "." + pkName + ") WHERE "
+                        + pkName + " IN (SELECT " + pkName + " FROM " + stage + ")");
+            }
+            String apply = sb.toString();
+
+            sb = new StringBuilder("INSERT INTO " + stage + " (" + pkName + "," + cols + flags + ") VALUES (?");
+            for (int j = 0; j < values.size() + partial.size(); j++) {
+                sb.append(",?");
+            }
+            sb.append(")");
+
+            own = begin(con);
+            ps = con.prepareStatement(sb.toString());
+
+            int batch = currentBatchSize();
+            int chunk = Math.max(batch, BULK_CHUNK_VALUES / (values.size() + 1));
+            int size = objects.size();
+            for (int from = 0; from < size; from += chunk) {
+                int to = Math.min(from + chunk, size);
+
+                // one row per key, the last one wins like with update(List)
+                Map<Object, E> unique = new LinkedHashMap<>();
+                for (int i = from; i < to; i++) {
+                    E object = objects.get(i);
+                    unique.put(key.get(object), object);
                 }
-                setObject(ps, k, convertToStore(key, object));
-                ps.addBatch();
 
-                if (b == batchSize) {
+                int b = 0;
+                for (E object : unique.values()) {
+                    bind(ps, 1, key, convertToStore(con, key, object));
+                    int k = 2;
+                    for (Field field : values) {
+                        bind(ps, k++, field, convertToStore(con, field, object));
+                    }
+                    for (Field field : values) {
+                        if (partial.contains(field)) {
+                            ps.setBoolean(k++, writes(object, field));
+                        }
+                    }
+                    ps.addBatch();
+
+                    if (++b == batch) {
+                        ps.executeBatch();
+                        ps.clearBatch();
+                        b = 0;
+                    }
+                }
+                if (b != 0) {
                     ps.executeBatch();
                     ps.clearBatch();
-                    b = 0;
                 }
-            }
-            if (b != 0) {
-                ps.executeBatch();
+
+                st.executeUpdate(apply);
+                st.executeUpdate("DELETE FROM " + stage);
+                if (own) {
+                    con.commit();
+                }
             }
         } catch (Exception e) {
-            throw new FastDAOException("update - batch", e);
+            throw new FastDAOException("update - bulk", e);
         } finally {
             closeStatement(ps);
+            restoreAutoCommit(con, own);
+            dropTable(st, stage);
+            closeStatement(st);
+            invalidate();
             closeConnection(con);
         }
     }
@@ -449,45 +909,44 @@ public abstract class FastDAO<E extends FastEntity> {
         try {
             StringBuilder sb = new StringBuilder("UPDATE " + tableName + " SET (");
 
-            int length = fields.size();
             Field key = null;
-            int k = 0;
+            List<Field> values = new ArrayList<>();
             for (Field f : fields.values()) {
                 String colName = getFwMapping(f.getName());
-                if (!colName.equals(pkName)) {
-                    if (k++ > 0) {
+                if (colName.equals(pkName)) {
+                    key = f;
+                } else if (writes(object, f)) {
+                    if (values.size() > 0) {
                         sb.append(",");
                     }
                     sb.append(colName);
-                } else {
-                    key = f;
+                    values.add(f);
                 }
             }
 
             sb.append(") = (");
 
-            for (int j = 1; j < length; j++) {
-                if (j > 1) {
+            for (int j = 0; j < values.size(); j++) {
+                if (j > 0) {
                     sb.append(",");
                 }
                 sb.append("?");
             }
             sb.append(") WHERE " + pkName + "=?");
 
-            con = ds.getConnection();
+            con = connect();
             ps = con.prepareStatement(sb.toString());
-            k = 1;
-            for (Field field : fields.values()) {
-                if (!getFwMapping(field.getName()).equals(pkName)) {
-                    setObject(ps, k++, convertToStore(field, object));
-                }
+            int k = 1;
+            for (Field field : values) {
+                bind(ps, k++, field, convertToStore(con, field, object));
             }
-            setObject(ps, k, convertToStore(key, object));
+            bind(ps, k, key, convertToStore(con, key, object));
 
             ps.executeUpdate();
         } catch (Exception e) {
             throw new FastDAOException("update - single", e);
         } finally {
+            invalidate();
             closeStatement(ps);
             closeConnection(con);
         }
@@ -520,19 +979,20 @@ public abstract class FastDAO<E extends FastEntity> {
 
             sb.append(")");
 
-            Field key = fields.get(getRevMapping(pkName));
+            Field key = meta.key;
 
-            con = ds.getConnection();
+            con = connect();
             ps = con.prepareStatement(sb.toString());
             int k = 1;
             for (E object : objects) {
-                setObject(ps, k++, convertToStore(key, object));
+                bind(ps, k++, key, convertToStore(con, key, object));
             }
 
             ps.executeUpdate();
         } catch (Exception e) {
             throw new FastDAOException("delete - list", e);
         } finally {
+            invalidate();
             closeStatement(ps);
             closeConnection(con);
         }
@@ -552,44 +1012,285 @@ public abstract class FastDAO<E extends FastEntity> {
         PreparedStatement ps = null;
 
         try {
-            Field key = fields.get(getRevMapping(pkName));
+            Field key = meta.key;
 
-            con = ds.getConnection();
+            con = connect();
             ps = con.prepareStatement("DELETE FROM " + tableName + " WHERE " + pkName + "=?");
-            setObject(ps, 1, convertToStore(key, object));
+            bind(ps, 1, key, convertToStore(con, key, object));
 
             ps.executeUpdate();
         } catch (Exception e) {
             throw new FastDAOException("delete - single", e);
         } finally {
+            invalidate();
             closeStatement(ps);
             closeConnection(con);
         }
     }
 
     /**
-     * Convenience method to get all &lt;E&gt; instances from the table
+     * Convenience method to get all &lt;E&gt; instances from the table. Lazy columns are not selected
      *
      * @return all &lt;E&gt; instances
      */
     protected List<E> getAll() {
-        return select("SELECT * FROM " + tableName);
+        return select("SELECT " + meta.eagerColumns + " FROM " + tableName);
+    }
+
+    /**
+     * Scan the whole table in parallel. The table is split into ranges of primary key between its min and max
+     * values, and each range is read on its own connection, streaming rows to the consumer. Tables with
+     * non-numeric primary key are read as a single range. Lazy columns are not selected
+     *
+     * @param partitions  number of primary key ranges
+     * @param parallelism max number of ranges read concurrently, i.e. connections used at once
+     * @param consumer    thread-safe consumer of &lt;E&gt; instances
+     */
+    protected void scan(int partitions, int parallelism, Consumer<E> consumer) {
+        List<Object[]> ranges = partitions(partitions);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, ranges.size())), r -> {
+            Thread thread = new Thread(r, "fastdao-scan-" + tableName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        // ranges are awaited in order of completion, so the first failure cancels the rest right away
+        CompletionService<Object> completion = new ExecutorCompletionService<>(executor);
+        List<Future<Object>> futures = new ArrayList<>();
+        try {
+            for (Object[] range : ranges) {
+                futures.add(completion.submit(() -> execute("scan", Query.of((String) range[0]), (Object[]) range[1], true, rs -> {
+                    readEntities(rs, consumer);
+                    return null;
+                })));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                completion.take().get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof FastDAOException) ? (FastDAOException) cause : new FastDAOException("scan", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FastDAOException("scan", e);
+        } finally {
+            for (Future<Object> future : futures) {
+                future.cancel(true);
+            }
+            executor.shutdownNow();
+        }
     }
 
     /**
-     * Get a single &lt;E&gt; instance matching by its primary key value
+     * Parallel stream of all &lt;E&gt; instances from the table, split into ranges of primary key like
+     * {@link #scan(int, int, Consumer)} does. Each range is read into memory by a worker of the stream's pool
+     * when it gets to it, so concurrency is bounded by that pool
+     *
+     * @param partitions number of primary key ranges
+     * @return parallel stream of &lt;E&gt; instances
+     */
+    protected Stream<E> parallelScan(int partitions) {
+        return partitions(partitions).parallelStream()
+                .flatMap(range -> selectEntities(Query.of((String) range[0]), (Object[]) range[1]).stream());
+    }
+
+    /**
+     * Get all &lt;E&gt; instances from the table with only specified fields selected. All other fields are left null,
+     * and updates keep their columns as is, unless they're set
+     *
+     * @param fieldNames persistent class field names to select
+     * @return all &lt;E&gt; instances
+     */
+    protected List<E> getAll(String... fieldNames) {
+        if (fieldNames.length == 0) {
+            return getAll();
+        }
+
+        return select("SELECT " + columns(fieldNames) + " FROM " + tableName);
+    }
+
+    /**
+     * Get a single &lt;E&gt; instance matching by its primary key value. Lazy columns are not selected
      *
      * @param pk primary key value
      * @return &lt;E&gt; instance
      */
     protected E getByPK(Object pk) {
-        List<E> objects = select("SELECT * FROM " + tableName + " WHERE " + pkName + "=?", pk);
+        return selectByPK(pk, meta.eagerColumns);
+    }
 
-        if (objects.size() != 1) {
-            return null;
+    /**
+     * Get a single &lt;E&gt; instance matching by its primary key value with only specified fields selected
+     *
+     * @param pk         primary key value
+     * @param fieldNames persistent class field names to select
+     * @return &lt;E&gt; instance
+     */
+    protected E getByPK(Object pk, String... fieldNames) {
+        String projection = (fieldNames.length == 0) ? meta.eagerColumns : columns(fieldNames);
+
+        return selectByPK(pk, projection);
+    }
+
+    /**
+     * Load specified fields (all lazy fields by default) into already selected &lt;E&gt; instances, matching by
+     * their primary key values. Uses one follow-up query per {@link #setBatchSize(int)} instances
+     *
+     * @param objects    &lt;E&gt; instances
+     * @param fieldNames persistent class field names to load
+     */
+    protected void fetch(List<E> objects, String... fieldNames) {
+        if (objects.size() == 0) {
+            return;
         }
 
-        return objects.get(0);
+        List<Field> toFetch = new ArrayList<>();
+        if (fieldNames.length == 0) {
+            for (Map.Entry<Field, Column> column : meta.columns.entrySet()) {
+                if (column.getValue().lazy()) {
+                    toFetch.add(column.getKey());
+                }
+            }
+        } else {
+            for (String fieldName : fieldNames) {
+                toFetch.add(getField(fieldName));
+            }
+        }
+        if (toFetch.isEmpty()) {
+            return;
+        }
+
+        Field key = meta.key;
+
+        StringBuilder sb = new StringBuilder("SELECT " + pkName);
+        for (Field field : toFetch) {
+            sb.append(",").append(getFwMapping(field.getName()));
+        }
+        sb.append(" FROM " + tableName + " WHERE " + pkName + " IN ?");
+        String query = sb.toString();
+
+        // instances selected together share their set of loaded fields
+        Map<Set<Field>, Set<Field>> widened = new IdentityHashMap<>();
+        try {
+            int size = objects.size();
+            int batch = currentBatchSize();
+            for (int from = 0; from < size; from += batch) {
+                List<E> chunk = objects.subList(from, Math.min(from + batch, size));
+
+                List<Object> pks = new ArrayList<>(chunk.size());
+                for (E object : chunk) {
+                    pks.add(key.get(object));
+                }
+
+                Map<Object, E> fetched = new HashMap<>();
+                for (E e : select(query, pks)) {
+                    fetched.put(key.get(e), e);
+                }
+
+                for (E object : chunk) {
+                    E e = fetched.get(key.get(object));
+                    if (e != null) {
+                        for (Field field : toFetch) {
+                            field.set(object, field.get(e));
+                        }
+                        if (object.loadedFields != null) {
+                            object.loadedFields = widened.computeIfAbsent(object.loadedFields, loaded -> {
+                                Set<Field> wider = new HashSet<>(loaded);
+                                wider.addAll(toFetch);
+                                return wider.containsAll(fields.values()) ? null : Collections.unmodifiableSet(wider);
+                            });
+                        }
+                    }
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new FastDAOException("fetch", e);
+        }
+    }
+
+    /**
+     * Load specified fields (all lazy fields by default) into already selected &lt;E&gt; instance
+     *
+     * @param object     &lt;E&gt; instance
+     * @param fieldNames persistent class field names to load
+     */
+    protected void fetch(E object, String... fieldNames) {
+        fetch(Collections.singletonList(object), fieldNames);
+    }
+
+    /**
+     * Load entities referenced by a {@link FastEntity}-typed field of already selected &lt;E&gt; instances. Such
+     * fields are selected as stubs with only primary key set, and this method replaces them with fully loaded
+     * instances, using one query per batch of distinct keys instead of one per instance. Stubs of missing
+     * referenced rows are left as is
+     *
+     * @param objects   &lt;E&gt; instances
+     * @param fieldName name of the reference field
+     * @param targetDAO DAO of referenced entity class
+     * @param <R>       referenced {@link FastEntity} subclass
+     */
+    protected <R extends FastEntity> void fetchReferences(List<E> objects, String fieldName, FastDAO<R> targetDAO) {
+        Field field = getField(fieldName);
+        if (!targetDAO.persistentClass.isAssignableFrom(field.getType())) {
+            throw new FastDAOException("fetch - references", new IllegalArgumentException("Field " + fieldName + " of "
+                    + persistentClass.getCanonicalName() + " doesn't reference " + targetDAO.persistentClass.getCanonicalName()));
+        }
+
+        try {
+            Field targetKey = targetDAO.meta.key;
+
+            Set<Object> distinct = new LinkedHashSet<>();
+            for (E object : objects) {
+                Object ref = field.get(object);
+                if (ref != null) {
+                    distinct.add(targetKey.get(ref));
+                }
+            }
+            if (distinct.isEmpty()) {
+                return;
+            }
+
+            String query = "SELECT " + targetDAO.meta.eagerColumns + " FROM " + targetDAO.tableName + " WHERE "
+                    + targetDAO.pkName + " IN ?";
+
+            List<Object> ids = new ArrayList<>(distinct);
+            Map<Object, R> fetched = new HashMap<>();
+            int size = ids.size();
+            int batch = targetDAO.currentBatchSize();
+            for (int from = 0; from < size; from += batch) {
+                for (R r : targetDAO.select(query, ids.subList(from, Math.min(from + batch, size)))) {
+                    fetched.put(targetKey.get(r), r);
+                }
+            }
+
+            for (E object : objects) {
+                Object ref = field.get(object);
+                if (ref != null) {
+                    R r = fetched.get(targetKey.get(ref));
+                    if (r != null) {
+                        field.set(object, r);
+                    }
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new FastDAOException("fetch - references", e);
+        }
+    }
+
+    /**
+     * Physical column names of specified persistent class fields, to be used as a projection in SELECT query
+     *
+     * @param fieldNames persistent class field names
+     * @return comma-separated physical column names
+     */
+    protected String columns(String... fieldNames) {
+        StringJoiner sj = new StringJoiner(",");
+        for (String fieldName : fieldNames) {
+            sj.add(getFwMapping(getField(fieldName).getName()));
+        }
+
+        return sj.toString();
     }
 
     /**
@@ -602,7 +1303,7 @@ public abstract class FastDAO<E extends FastEntity> {
             throw new FastDAOException("delete - single", new NullPointerException());
         }
 
-        Class<?> type = fields.get(getRevMapping(pkName)).getType();
+        Class<?> type = meta.key.getType();
         if (!type.isInstance(pk)) {
             throw new FastDAOException("delete - single", new IllegalArgumentException(
                     "Unexpected primary key type. Expected: " + type.getCanonicalName() + " but passed is: " + pk.getClass()
@@ -614,7 +1315,7 @@ public abstract class FastDAO<E extends FastEntity> {
 
         try {
 
-            con = ds.getConnection();
+            con = connect();
             ps = con.prepareStatement("DELETE FROM " + tableName + " WHERE " + pkName + "=?");
             setObject(ps, 1, pk);
 
@@ -622,50 +1323,405 @@ public abstract class FastDAO<E extends FastEntity> {
         } catch (Exception e) {
             throw new FastDAOException("delete - single", e);
         } finally {
+            invalidate();
             closeStatement(ps);
             closeConnection(con);
         }
     }
 
-    private String getRevMapping(String columnName) {
-        if (revMapping.containsKey(columnName)) {
-            return revMapping.get(columnName);
+    /**
+     * Expand replaceable parameters of the query template, execute it and pass its {@link ResultSet} to the reader
+     *
+     * @param op     operation name for {@link FastDAOException}
+     * @param stream if set, rows are fetched from the server in chunks of {@link #setBatchSize(int)} instead of
+     *               being buffered by the driver all at once (this requires a transaction on most drivers)
+     */
+    private <R> R execute(String op, Query query, Object[] args, boolean stream, ResultSetReader<R> reader) {
+        Connection con = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        Statement st = null;
+        List<String> keyTables = new ArrayList<>();
+        List<List<?>> keyLists = new ArrayList<>();
+        boolean own = false;
+
+        R result = null;
+        FastDAOException failure = null;
+        try {
+            con = connect();
+
+            // DDL would commit the caller's transaction on some databases, so lists are unfolded inside it
+            if (hasKeyTables(query, args) && con.getAutoCommit()) {
+                args = args.clone();
+                st = con.createStatement();
+
+                // created before the transaction, as rolling it back would drop them on databases with transactional DDL
+                for (int j = 0; j < args.length; j++) {
+                    if (isKeyTable(query, j, args[j])) {
+                        String table = "fastdao_keys_" + tempTables.incrementAndGet();
+                        st.execute("CREATE LOCAL TEMPORARY TABLE " + table + " (k " + keyType((List<?>) args[j]) + ")");
+                        keyTables.add(table);
+                        keyLists.add((List<?>) args[j]);
+                        args[j] = new Query.Inline("(SELECT k FROM " + table + ")");
+                    }
+                }
+
+                own = begin(con);
+                for (int t = 0; t < keyTables.size(); t++) {
+                    loadKeys(con, keyTables.get(t), keyLists.get(t));
+                }
+            } else if (stream) {
+                own = begin(con);
+            }
+
+            Query.Bound bound = query.bind(args);
+
+            ps = con.prepareStatement(bound.sql);
+            if (stream) {
+                ps.setFetchSize(currentBatchSize());
+            }
+
+            int c = 1;
+            for (Object a : bound.args) {
+                setObject(ps, c++, a);
+            }
+
+            rs = ps.executeQuery();
+
+            result = reader.read(rs);
+            if (own) {
+                con.commit();
+            }
+        } catch (Exception e) {
+            failure = new FastDAOException(op, e);
         }
 
-        return columnName;
+        Connection fcon = con;
+        PreparedStatement fps = ps;
+        ResultSet frs = rs;
+        Statement fst = st;
+        boolean fown = own;
+        failure = cleanup(failure, () -> closeResultSet(frs));
+        failure = cleanup(failure, () -> closeStatement(fps));
+        failure = cleanup(failure, () -> restoreAutoCommit(fcon, fown));
+        for (String table : keyTables) {
+            failure = cleanup(failure, () -> dropTable(fst, table));
+        }
+        failure = cleanup(failure, () -> closeStatement(fst));
+        failure = cleanup(failure, () -> closeConnection(fcon));
+
+        if (failure != null) {
+            throw failure;
+        }
+        return result;
     }
 
-    private String getFwMapping(String fieldName) {
-        if (fwMapping.containsKey(fieldName)) {
-            return fwMapping.get(fieldName);
+    /**
+     * Run a cleanup step, so that its failure neither replaces the failure of the operation nor skips further steps
+     *
+     * @param failure failure of the operation or of previous steps, if any
+     * @return failure to throw after all steps, if any
+     */
+    private static FastDAOException cleanup(FastDAOException failure, Runnable step) {
+        try {
+            step.run();
+        } catch (RuntimeException e) {
+            if (failure == null) {
+                return (e instanceof FastDAOException) ? (FastDAOException) e : new FastDAOException("cleanup", e);
+            }
+            failure.addSuppressed(e);
         }
 
-        return fieldName;
+        return failure;
     }
 
-    private void setObject(PreparedStatement s, int i, Object a) throws SQLException {
-        if (a instanceof FastEntity) {
-            s.setObject(i, ((FastEntity) a).getId());
-            return;
+    /**
+     * Whether any argument has to be loaded into a temporary table, see {@link #setTempTableThreshold(int)}
+     */
+    private boolean hasKeyTables(Query query, Object[] args) {
+        if ((tempTableThreshold <= 0) || (args.length != query.getParameterCount())) {
+            return false;
+        }
+
+        for (int j = 0; j < args.length; j++) {
+            if (isKeyTable(query, j, args[j])) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean isKeyTable(Query query, int j, Object a) {
+        return query.isInSlot(j) && (a instanceof List) && (((List<?>) a).size() > tempTableThreshold)
+                && (keyType((List<?>) a) != null);
+    }
+
+    /**
+     * SQL type of temporary table column for the keys, judging by the first non-null one
+     *
+     * @return SQL type, or null if keys of this type aren't supported
+     */
+    private static String keyType(List<?> keys) {
+        for (Object key : keys) {
+            if (key != null) {
+                if ((key instanceof Long) || (key instanceof Integer) || (key instanceof Short) || (key instanceof Byte)) {
+                    return "BIGINT";
+                }
+                if ((key instanceof String) || (key instanceof Enum)) {
+                    return "VARCHAR";
+                }
+                if (key instanceof UUID) {
+                    return "UUID";
+                }
+                if (key instanceof BigDecimal) {
+                    return "NUMERIC";
+                }
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    private void loadKeys(Connection con, String table, List<?> keys) throws SQLException {
+        PreparedStatement ps = null;
+
+        try {
+            ps = con.prepareStatement("INSERT INTO " + table + " (k) VALUES (?)");
+
+            int batch = currentBatchSize();
+            int b = 0;
+            for (Object key : keys) {
+                setObject(ps, 1, key);
+                ps.addBatch();
+
+                if (++b == batch) {
+                    ps.executeBatch();
+                    ps.clearBatch();
+                    b = 0;
+                }
+            }
+            if (b != 0) {
+                ps.executeBatch();
+            }
+        } finally {
+            closeStatement(ps);
+        }
+    }
+
+    private List<E> copy(List<E> objects) {
+        try {
+            List<E> copies = new ArrayList<>(objects.size());
+            for (E object : objects) {
+                E c = persistentClass.newInstance();
+                for (Field field : fields.values()) {
+                    field.set(c, copyValue(field, field.get(object)));
+                }
+                c.loadedFields = object.loadedFields;
+                copies.add(c);
+            }
+
+            return copies;
+        } catch (Exception e) {
+            throw new FastDAOException("copy", e);
+        }
+    }
+
+    /**
+     * Copy of a mutable field value, so instances shared by {@link QueryCache} and coalesced reads can't be changed
+     * through their copies. Arrays, dates, lists, sets and maps are copied (their elements aren't), other values
+     * are shared
+     */
+    private static Object copyValue(Field field, Object value) {
+        if (value == null) {
+            return null;
+        }
+
+        Class<?> type = field.getType();
+        if (value.getClass().isArray()) {
+            int length = java.lang.reflect.Array.getLength(value);
+            Object array = java.lang.reflect.Array.newInstance(value.getClass().getComponentType(), length);
+            System.arraycopy(value, 0, array, 0, length);
+            return array;
+        }
+        if (value instanceof java.util.Date) {
+            return ((java.util.Date) value).clone();
+        }
+        if ((value instanceof List) && type.isAssignableFrom(ArrayList.class)) {
+            return new ArrayList<>((List<?>) value);
+        }
+        if ((value instanceof Set) && type.isAssignableFrom(LinkedHashSet.class)) {
+            return new LinkedHashSet<>((Set<?>) value);
+        }
+        if ((value instanceof Map) && type.isAssignableFrom(LinkedHashMap.class)) {
+            return new LinkedHashMap<>((Map<?, ?>) value);
+        }
+
+        return value;
+    }
+
+    private void invalidate() {
+        QueryCache cache = queryCache;
+        if (cache != null) {
+            cache.invalidate(tableName);
+        }
+
+        // reads of the table started before the change must not be joined by later callers
+        if (!inFlight.isEmpty()) {
+            String table = QueryCache.normalize(tableName);
+            inFlight.values().removeIf(flight -> Arrays.asList(flight.tables).contains(table));
+        }
+    }
+
+    /**
+     * Value of a staged column for {@link #updateBulk(List)}, keeping current value for instances that weren't
+     * selected with it
+     */
+    private static String staged(Set<Field> partial, Field field, int j, String staged, String current) {
+        return partial.contains(field) ? ("CASE WHEN s.fastdao_w" + j + " THEN " + staged + " ELSE " + current + " END") : staged;
+    }
+
+    /**
+     * Whether an update writes the field of the instance. Fields it wasn't selected or fetched with are kept as is,
+     * unless they're set to non-null values, and unselected primitive fields are always kept
+     */
+    private static boolean writes(FastEntity object, Field field) throws IllegalAccessException {
+        Set<Field> loaded = object.loadedFields;
+
+        return (loaded == null) || loaded.contains(field)
+                || (!field.getType().isPrimitive() && (field.get(object) != null));
+    }
+
+    /**
+     * Fields that some of instances weren't selected with
+     */
+    private Set<Field> partialFields(List<E> objects) {
+        Set<Field> partial = new HashSet<>();
+        Set<Set<Field>> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (E object : objects) {
+            if ((object.loadedFields != null) && seen.add(object.loadedFields)) {
+                for (Field field : fields.values()) {
+                    if (!object.loadedFields.contains(field)) {
+                        partial.add(field);
+                    }
+                }
+            }
+        }
+
+        return partial;
+    }
+
+    private DataSource dataSource() {
+        return (dataSource != null) ? dataSource : ds;
+    }
+
+    private Connection connect() throws SQLException {
+        return dataSource().getConnection();
+    }
+
+    /**
+     * Split the table into ranges of numeric primary key
+     *
+     * @return pairs of query and its arguments, one for each range
+     */
+    private List<Object[]> partitions(int partitions) {
+        String query = "SELECT " + meta.eagerColumns + " FROM " + tableName;
+
+        Class<?> type = (meta.key != null) ? meta.key.getType() : Object.class;
+        boolean numeric = (type == Long.class) || (type == long.class) || (type == Integer.class) || (type == int.class)
+                || (type == Short.class) || (type == short.class);
+        if (!numeric || (partitions <= 1)) {
+            return Collections.singletonList(new Object[]{query, new Object[0]});
+        }
+
+        long[] bounds = new long[3];
+        selectLongRows(row -> System.arraycopy(row, 0, bounds, 0, 3),
+                "SELECT COUNT(*), MIN(" + pkName + "), MAX(" + pkName + ") FROM " + tableName);
+        if (bounds[0] == 0L) {
+            return Collections.emptyList();
+        }
+
+        long min = bounds[1], max = bounds[2];
+        long step = Math.max(1L, max / partitions - min / partitions + 1L); // won't overflow on extreme keys
+
+        List<Object[]> ranges = new ArrayList<>();
+        for (long lo = min; lo <= max; lo += step) {
+            long hi = lo + step;
+            if ((hi > max) || (hi <= lo)) {
+                ranges.add(new Object[]{query + " WHERE " + pkName + ">=? AND " + pkName + "<=?", new Object[]{lo, max}});
+                break;
+            }
+            ranges.add(new Object[]{query + " WHERE " + pkName + ">=? AND " + pkName + "<?", new Object[]{lo, hi}});
+        }
+
+        return ranges;
+    }
+
+    private E selectByPK(Object pk, String projection) {
+        List<E> objects = select("SELECT " + projection + " FROM " + tableName + " WHERE " + pkName + "=?", pk);
+
+        if (objects.size() != 1) {
+            return null;
+        }
+
+        return objects.get(0);
+    }
+
+    private Field getField(String fieldName) {
+        Field field = fields.get(fieldName);
+        if (field == null) {
+            throw new FastDAOException("projection", new IllegalArgumentException(
+                    "Unknown field " + fieldName + " of " + persistentClass.getCanonicalName()));
         }
 
-        if (a instanceof java.util.Date) {
-            s.setDate(i, new java.sql.Date(((java.util.Date) a).getTime()));
+        return field;
+    }
+
+    private String getRevMapping(String columnName) {
+        return meta.getRevMapping(columnName);
+    }
+
+    private String getFwMapping(String fieldName) {
+        return meta.getFwMapping(fieldName);
+    }
+
+    /**
+     * Bind a field value with the field's codec, or by its runtime type if it was converted by
+     * {@link StoreConverter}. NULLs are typed if column type is known from {@link #validate(Class[])}
+     */
+    private void bind(PreparedStatement s, int i, Field field, Object a) throws SQLException {
+        if (a == null) {
+            Integer sqlType = meta.sqlType(field);
+            if (sqlType != null) {
+                s.setNull(i, sqlType);
+            } else {
+                s.setObject(i, null);
+            }
             return;
         }
 
-        if (a instanceof Enum) {
-            s.setString(i, ((Enum<?>) a).name());
+        if (meta.storeConverters.containsKey(field)) {
+            setObject(s, i, a);
+        } else {
+            meta.codecs.get(field).bind(s, i, a);
+        }
+    }
+
+    private void setObject(PreparedStatement s, int i, Object a) throws SQLException {
+        if (a == null) {
+            s.setObject(i, null);
             return;
         }
 
-        s.setObject(i, a);
+        Codecs.forType(a.getClass()).bind(s, i, a);
     }
 
-    private Object convertToStore(Field field, Object object) throws Exception {
+    private Object convertToStore(Connection con, Field field, Object object) throws Exception {
         Object fieldValue = field.get(object);
-        if (columns.containsKey(field)) {
-            return columns.get(field).store().newInstance().store(ds.getConnection(), fieldValue);
+        StoreConverter converter = meta.storeConverters.get(field);
+        if (converter != null) {
+            return converter.store(con, fieldValue);
         }
 
         return fieldValue;
@@ -673,14 +1729,180 @@ public abstract class FastDAO<E extends FastEntity> {
 
     private Object convertFromRetrieve(Field field, Object object, Object dbValue) throws Exception {
         Object value = dbValue;
-        if (columns.containsKey(field)) {
-            value = columns.get(field).retrieve().newInstance().retrieve(dbValue);
+        RetrieveConverter converter = meta.retrieveConverters.get(field);
+        if (converter != null) {
+            value = converter.retrieve(dbValue);
         }
 
         field.set(object, value);
         return value;
     }
 
+    /**
+     * Execute the statement for instances starting from the given index, in batches sized by
+     * {@link #setBatchSizing(BatchSizing)}, committing each batch. Batches failed with a transient error are retried on a new connection
+     */
+    private void executeBatches(String op, String sql, List<E> objects, int from, BatchCheckpoint checkpoint,
+                                Binder<E> binder) {
+        Connection con = null;
+        PreparedStatement ps = null;
+
+        BatchSizing sizing = (batchSizing != null) ? batchSizing : BatchSizing.fixed(batchSize);
+
+        int size = objects.size();
+        int committed = from;
+        int batches = 0;
+        int attempt = 0;
+        boolean own = false;
+
+        try {
+            while (committed < size) {
+                try {
+                    if (con == null) {
+                        con = connect();
+                        own = begin(con);
+                        ps = con.prepareStatement(sql);
+                    }
+
+                    int to = Math.min(committed + sizing.next(meta.rowBytes), size);
+                    for (int i = committed; i < to; i++) {
+                        binder.bind(ps, objects.get(i));
+                        ps.addBatch();
+                    }
+                    long start = System.nanoTime();
+                    ps.executeBatch();
+                    if (own) {
+                        con.commit();
+                    }
+                    sizing.record(to - committed, System.nanoTime() - start);
+
+                    committed = to;
+                    batches++;
+                    attempt = 0;
+                } catch (SQLException e) {
+                    // failed transaction of the caller can't be retried
+                    if (((con != null) && !own) || (attempt >= retries) || !isTransient(e)) {
+                        throw e;
+                    }
+
+                    discard(con, ps);
+                    con = null;
+                    ps = null;
+
+                    Thread.sleep(retryBackoff << attempt++);
+                    continue;
+                }
+
+                if (checkpoint != null) {
+                    checkpoint.committed(committed, batches);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FastDAOBatchException(op, e, committed, batches);
+        } catch (Exception e) {
+            throw new FastDAOBatchException(op, e, committed, batches);
+        } finally {
+            invalidate();
+            closeStatement(ps);
+            restoreAutoCommit(con, own);
+            closeConnection(con);
+        }
+    }
+
+    private int currentBatchSize() {
+        return (batchSizing != null) ? batchSizing.next(meta.rowBytes) : batchSize;
+    }
+
+    private static boolean isTransient(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if ((t instanceof SQLTransientException) || (t instanceof SQLRecoverableException)) {
+                return true;
+            }
+            if (t instanceof SQLException) {
+                SQLException e = (SQLException) t;
+                String state = e.getSQLState();
+                // transaction rollback (deadlock, serialization failure) or connection exception
+                if ((state != null) && (state.startsWith("40") || state.startsWith("08"))) {
+                    return true;
+                }
+                if ((e.getNextException() != null) && isTransient(e.getNextException())) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Roll back and close the connection after a failure, ignoring any errors as it may be already broken
+     */
+    private static void discard(Connection con, Statement ps) {
+        try {
+            if (ps != null) {
+                ps.close();
+            }
+        } catch (Exception ignore) {
+        }
+        try {
+            if (con != null) {
+                con.rollback();
+                con.setAutoCommit(true);
+            }
+        } catch (Exception ignore) {
+        }
+        try {
+            if (con != null) {
+                con.close();
+            }
+        } catch (Exception ignore) {
+        }
+    }
+
+    private void dropTable(Statement st, String table) {
+        if ((st != null) && (table != null)) {
+            try {
+                if (!st.isClosed()) {
+                    st.execute("DROP TABLE IF EXISTS " + table);
+                }
+            } catch (Exception e) {
+                throw new FastDAOException("can't drop temporary table", e);
+            }
+        }
+    }
+
+    /**
+     * Start a transaction, unless the connection is already in one, e.g. of a transaction-bound DataSource
+     *
+     * @return true if the transaction was started here, and must be committed and finished here as well
+     */
+    private static boolean begin(Connection con) throws SQLException {
+        if (con.getAutoCommit()) {
+            con.setAutoCommit(false);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Roll back whatever wasn't committed and restore auto-commit, if the transaction was started by
+     * {@link #begin(Connection)}
+     */
+    private void restoreAutoCommit(Connection con, boolean own) {
+        if (own && (con != null)) {
+            try {
+                if (!con.isClosed() && !con.getAutoCommit()) {
+                    con.rollback();
+                    con.setAutoCommit(true);
+                }
+            } catch (Exception e) {
+                throw new FastDAOException("can't restore auto-commit", e);
+            }
+        }
+    }
+
     private void closeStatement(Statement stmt) {
         if (stmt != null) {
             try {
@@ -716,4 +1938,26 @@ public abstract class FastDAO<E extends FastEntity> {
             }
         }
     }
+
+    /**
+     * Read being executed, with tables its query mentions
+     */
+    private static final class Flight {
+        private final CompletableFuture<List<?>> result = new CompletableFuture<>();
+        private final String[] tables;
+
+        private Flight(String[] tables) {
+            this.tables = tables;
+        }
+    }
+
+    @FunctionalInterface
+    private interface ResultSetReader<R> {
+        R read(ResultSet rs) throws Exception;
+    }
+
+    @FunctionalInterface
+    private interface Binder<E> {
+        void bind(PreparedStatement ps, E object) throws Exception;
+    }
 }
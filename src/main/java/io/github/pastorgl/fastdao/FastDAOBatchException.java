@@ -0,0 +1,30 @@
+package io.github.pastorgl.fastdao;
+
+/**
+ * Failure of a batch operation, with the progress it made before failing. Batches up to
+ * {@link #getCommittedRows()} are committed, so the operation may be resumed from that index.
+ */
+public class FastDAOBatchException extends FastDAOException {
+    private final int committedRows;
+    private final int committedBatches;
+
+    public FastDAOBatchException(String cause, Exception e, int committedRows, int committedBatches) {
+        super(cause, e);
+        this.committedRows = committedRows;
+        this.committedBatches = committedBatches;
+    }
+
+    /**
+     * @return number of list instances committed, i.e. the index to resume from
+     */
+    public int getCommittedRows() {
+        return committedRows;
+    }
+
+    /**
+     * @return number of batches committed by the failed call
+     */
+    public int getCommittedBatches() {
+        return committedBatches;
+    }
+}
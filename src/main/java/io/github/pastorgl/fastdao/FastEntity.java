@@ -1,8 +1,16 @@
 package io.github.pastorgl.fastdao;
 
+import java.lang.reflect.Field;
+import java.util.Set;
+
 /**
  * FastDAO base entity class.
  */
 public abstract class FastEntity {
+    /**
+     * Fields the instance was selected or fetched with, if it was selected without some of them, or else null
+     */
+    transient Set<Field> loadedFields;
+
     public abstract Object getId();
 }
@@ -0,0 +1,267 @@
+package io.github.pastorgl.fastdao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SQL query template with ? replaceable parameters, parsed once and reusable by any number of threads, see
+ * {@link FastDAO#query(String)}. Question marks inside quoted literals and identifiers, comments, or escaped with
+ * backslash are not parameters, and are kept as is.
+ */
+public final class Query {
+    /**
+     * Max number of templates parsed from plain query strings to keep
+     */
+    private static final int MAX_CACHED = 4096;
+    private static final Map<String, Cached> cache = new ConcurrentHashMap<>();
+
+    private final String sql;
+    /**
+     * Parts of SQL between replaceable parameters
+     */
+    private final String[] parts;
+    /**
+     * For each parameter, whether it follows IN predicate, so it may be unfolded into a list or a sub-query
+     */
+    private final boolean[] inSlots;
+    /**
+     * SQL with all parameters as single placeholders, escapes included
+     */
+    private final String plain;
+
+    private Query(String sql) {
+        this.sql = sql;
+
+        List<String> parts = new ArrayList<>();
+        List<Boolean> inSlots = new ArrayList<>();
+
+        int len = sql.length();
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            char c = sql.charAt(i);
+            switch (c) {
+                case '\'':
+                case '"':
+                case '`': {
+                    int end = sql.indexOf(c, i + 1);
+                    // doubled quote is an escape, and just starts next quoted part
+                    i = (end < 0) ? len : end;
+                    break;
+                }
+                case '-': {
+                    if ((i + 1 < len) && (sql.charAt(i + 1) == '-')) {
+                        int end = sql.indexOf('\n', i + 2);
+                        i = (end < 0) ? len : end;
+                    }
+                    break;
+                }
+                case '/': {
+                    if ((i + 1 < len) && (sql.charAt(i + 1) == '*')) {
+                        int end = sql.indexOf("*/", i + 2);
+                        i = (end < 0) ? len : (end + 1);
+                    }
+                    break;
+                }
+                case '\\': {
+                    if ((i + 1 < len) && (sql.charAt(i + 1) == '?')) {
+                        i++;
+                    }
+                    break;
+                }
+                case '?': {
+                    parts.add(sql.substring(start, i));
+                    inSlots.add(followsIn(sql, i));
+                    start = i + 1;
+                    break;
+                }
+            }
+        }
+        parts.add(sql.substring(start));
+
+        this.parts = parts.toArray(new String[0]);
+        this.inSlots = new boolean[inSlots.size()];
+        for (int j = 0; j < this.inSlots.length; j++) {
+            this.inSlots[j] = inSlots.get(j);
+        }
+        this.plain = String.join("?", this.parts);
+    }
+
+    static Query parse(String sql) {
+        return new Query(sql);
+    }
+
+    /**
+     * Parsed template of a plain query string, reused for frequently called queries. Templates not used again since
+     * the last eviction are evicted when there are too many
+     */
+    static Query of(String sql) {
+        Cached cached = cache.get(sql);
+        if (cached == null) {
+            cached = new Cached(new Query(sql));
+            Cached existing = cache.putIfAbsent(sql, cached);
+            if (existing != null) {
+                cached = existing;
+            } else if (cache.size() > MAX_CACHED) {
+                evict();
+            }
+        }
+        // written once per eviction cycle, so hot templates don't contend on it
+        if (!cached.referenced) {
+            cached.referenced = true;
+        }
+
+        return cached.query;
+    }
+
+    /**
+     * Drop a quarter of templates, so eviction cost is amortized over many parses. Templates used since the last
+     * eviction get a second chance, and lose it for the next pass
+     */
+    private static synchronized void evict() {
+        if (cache.size() <= MAX_CACHED) {
+            return;
+        }
+
+        int drop = cache.size() - MAX_CACHED * 3 / 4;
+        while ((drop > 0) && !cache.isEmpty()) {
+            for (Iterator<Cached> it = cache.values().iterator(); it.hasNext() && (drop > 0); ) {
+                Cached cached = it.next();
+                if (cached.referenced) {
+                    cached.referenced = false;
+                } else {
+                    it.remove();
+                    drop--;
+                }
+            }
+        }
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return number of replaceable parameters
+     */
+    public int getParameterCount() {
+        return inSlots.length;
+    }
+
+    boolean isInSlot(int i) {
+        return inSlots[i];
+    }
+
+    /**
+     * Expand the template with arguments. {@link List} arguments are unfolded into parenthesized lists of
+     * placeholders, and arrays are bound as a single parenthesized parameter
+     */
+    Bound bind(Object[] args) {
+        if (args.length == 0) {
+            return new Bound(sql, args);
+        }
+        if (args.length != inSlots.length) {
+            throw new IllegalArgumentException("supplied query and replaceable arguments don't match");
+        }
+
+        boolean unfold = false;
+        for (Object a : args) {
+            if ((a instanceof List) || (a instanceof Object[]) || (a instanceof Inline)) {
+                unfold = true;
+                break;
+            }
+        }
+        if (!unfold) {
+            return new Bound(plain, args);
+        }
+
+        List<Object> expl = new ArrayList<>(args.length);
+        StringBuilder sb = new StringBuilder(sql.length() + 16);
+        for (int j = 0; j < args.length; j++) {
+            sb.append(parts[j]);
+
+            Object a = args[j];
+            if (a instanceof Inline) {
+                sb.append(((Inline) a).sql);
+                continue;
+            }
+            if (a instanceof Object[]) {
+                a = Collections.singletonList(a);
+            }
+            if (a instanceof List) {
+                List<?> aa = (List<?>) a;
+                int s = aa.size();
+                sb.append('(');
+                for (int i = 0; i < s; i++) {
+                    expl.add(aa.get(i));
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    sb.append('?');
+                }
+                sb.append(')');
+            } else {
+                expl.add(a);
+                sb.append('?');
+            }
+        }
+        sb.append(parts[args.length]);
+
+        return new Bound(sb.toString(), expl.toArray());
+    }
+
+    private static boolean followsIn(String sql, int i) {
+        int j = i - 1;
+        while ((j >= 0) && Character.isWhitespace(sql.charAt(j))) {
+            j--;
+        }
+
+        return (j >= 2) && ((sql.charAt(j) == 'n') || (sql.charAt(j) == 'N'))
+                && ((sql.charAt(j - 1) == 'i') || (sql.charAt(j - 1) == 'I'))
+                && !Character.isLetterOrDigit(sql.charAt(j - 2)) && (sql.charAt(j - 2) != '_');
+    }
+
+    @Override
+    public String toString() {
+        return sql;
+    }
+
+    private static final class Cached {
+        private final Query query;
+        /**
+         * Whether the template was used again since the last eviction
+         */
+        private volatile boolean referenced;
+
+        private Cached(Query query) {
+            this.query = query;
+        }
+    }
+
+    /**
+     * Argument that is replaced with an SQL fragment instead of being bound, e.g. a sub-query for IN predicate
+     */
+    static final class Inline {
+        final String sql;
+
+        Inline(String sql) {
+            this.sql = sql;
+        }
+    }
+
+    /**
+     * Expanded SQL with flat list of arguments, one per placeholder
+     */
+    static final class Bound {
+        final String sql;
+        final Object[] args;
+
+        private Bound(String sql, Object[] args) {
+            this.sql = sql;
+            this.args = args;
+        }
+    }
+}
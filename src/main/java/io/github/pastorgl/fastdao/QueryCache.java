@@ -0,0 +1,217 @@
+package io.github.pastorgl.fastdao;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Result cache for {@link FastDAO#select(String, Object...)}, keyed by entity class, query and argument values.
+ * Entries expire after TTL, least recently used entries are evicted over max size, and all entries whose query
+ * mentions a table are dropped when any {@link FastDAO} writes to that table.
+ */
+public class QueryCache {
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<Key, Entry> entries;
+    /**
+     * Normalized table name to keys of entries whose query mentions it
+     */
+    private final Map<String, Set<Key>> byTable = new HashMap<>();
+    /**
+     * Normalized table name to number of its invalidations, to avoid caching results read before the latest write
+     */
+    private final Map<String, Long> versions = new HashMap<>();
+
+    /**
+     * @param maxEntries max number of cached query results
+     * @param ttlMillis  max age of a cached query result
+     */
+    public QueryCache(int maxEntries, long ttlMillis) {
+        if ((maxEntries <= 0) || (ttlMillis <= 0)) {
+            throw new IllegalArgumentException("maxEntries and ttlMillis must be positive");
+        }
+
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                if (size() > QueryCache.this.maxEntries) {
+                    unlink(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Drop all cached results
+     */
+    public synchronized void clear() {
+        entries.clear();
+        byTable.clear();
+    }
+
+    /**
+     * Drop all cached results whose query mentions the table
+     *
+     * @param table physical table name
+     */
+    public synchronized void invalidate(String table) {
+        String t = normalize(table);
+
+        versions.merge(t, 1L, Long::sum);
+
+        Set<Key> keys = byTable.remove(t);
+        if (keys != null) {
+            for (Key key : keys) {
+                Entry entry = entries.remove(key);
+                if (entry != null) {
+                    unlink(key, entry);
+                }
+            }
+        }
+    }
+
+    synchronized List<?> get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (System.nanoTime() - entry.expires > 0) {
+            entries.remove(key);
+            unlink(key, entry);
+            return null;
+        }
+
+        return entry.value;
+    }
+
+    /**
+     * Current versions of tables, to be passed to {@link #put(Key, String[], long[], List)} after the query
+     */
+    synchronized long[] stamp(String[] tables) {
+        long[] stamp = new long[tables.length];
+        for (int i = 0; i < tables.length; i++) {
+            stamp[i] = versions.getOrDefault(tables[i], 0L);
+        }
+
+        return stamp;
+    }
+
+    /**
+     * Cache the result unless any of its tables was invalidated since the stamp was taken
+     */
+    synchronized void put(Key key, String[] tables, long[] stamp, List<?> value) {
+        for (int i = 0; i < tables.length; i++) {
+            if (versions.getOrDefault(tables[i], 0L) != stamp[i]) {
+                return;
+            }
+        }
+
+        Entry old = entries.put(key, new Entry(value, tables, System.nanoTime() + ttlNanos));
+        if (old != null) {
+            unlink(key, old);
+        }
+        for (String table : tables) {
+            byTable.computeIfAbsent(table, t -> new HashSet<>()).add(key);
+        }
+    }
+
+    /**
+     * Normalized names of all tables the query may read: every identifier of the query plus DAO's own table. Some
+     * identifiers are column names or keywords, that only makes invalidation a bit more eager
+     */
+    static String[] tables(String query, String tableName) {
+        Set<String> tables = new HashSet<>();
+        tables.add(normalize(tableName));
+
+        int len = query.length();
+        int start = -1;
+        for (int i = 0; i <= len; i++) {
+            boolean part = (i < len) && (Character.isLetterOrDigit(query.charAt(i)) || (query.charAt(i) == '_') || (query.charAt(i) == '$'));
+            if (part) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                tables.add(query.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+
+        return tables.toArray(new String[0]);
+    }
+
+    static String normalize(String table) {
+        String t = table.replace("\"", "").replace("`", "");
+        t = t.substring(t.lastIndexOf('.') + 1);
+
+        return t.toLowerCase(Locale.ROOT);
+    }
+
+    private void unlink(Key key, Entry entry) {
+        for (String table : entry.tables) {
+            Set<Key> keys = byTable.get(table);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    byTable.remove(table);
+                }
+            }
+        }
+    }
+
+    static final class Key {
+        private final Class<?> type;
+        /**
+         * DataSource queried, as results of different databases differ
+         */
+        private final Object source;
+        private final String query;
+        private final Object[] args;
+        private final int hash;
+
+        Key(Class<?> type, Object source, String query, Object[] args) {
+            this.type = type;
+            this.source = source;
+            this.query = query;
+            this.args = new Object[args.length];
+            for (int i = 0; i < args.length; i++) {
+                // don't let callers change the key by mutating their lists afterwards
+                this.args[i] = (args[i] instanceof List) ? new ArrayList<>((List<?>) args[i]) : args[i];
+            }
+            this.hash = 31 * (31 * (31 * type.hashCode() + System.identityHashCode(source)) + query.hashCode()) + Arrays.deepHashCode(this.args);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return (hash == key.hash) &&
+                    (type == key.type) &&
+                    (source == key.source) &&
+                    query.equals(key.query) &&
+                    Arrays.deepEquals(args, key.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        private final List<?> value;
+        private final String[] tables;
+        private final long expires;
+
+        private Entry(List<?> value, String[] tables, long expires) {
+            this.value = value;
+            this.tables = tables;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package io.github.pastorgl.fastdao;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Entity that only maps results of queries, like aggregates or joins, and isn't backed by a table of its own. Such
+ * entities aren't checked by {@link FastDAO#validate(Class[])}
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Result {
+}
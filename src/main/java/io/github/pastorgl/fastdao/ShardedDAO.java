@@ -0,0 +1,333 @@
+package io.github.pastorgl.fastdao;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Routes &lt;E&gt; instances to one of DAOs over a list of DataSources (shards) by hash of shard key, which is the
+ * primary key by default. Batch operations are split per shard and run on all shards in parallel, and selects are
+ * scattered to all shards with their results gathered.
+ * <p>
+ * Shard key must be set before an instance is inserted, so keys generated by the database can't be used as shard
+ * keys. Placement depends only on the key's value, and the number and order of shards, which must never change.
+ *
+ * @param <E> {@link FastEntity} subclass
+ * @param <D> DAO of &lt;E&gt;
+ */
+public class ShardedDAO<E extends FastEntity, D extends FastDAO<E>> implements AutoCloseable {
+    /**
+     * Whether a class overrides identity hashCode()
+     */
+    private static final ClassValue<Boolean> VALUE_HASH = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("hashCode").getDeclaringClass() != Object.class;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+    };
+
+    private final List<D> shards;
+    private final Function<E, Object> shardKey;
+    private final ExecutorService executor;
+
+    /**
+     * Shard by primary key
+     *
+     * @param dataSources DataSources of shards
+     * @param factory     creates a DAO of &lt;E&gt; for a shard, usually with {@link FastDAO#FastDAO(DataSource)}
+     */
+    public ShardedDAO(List<DataSource> dataSources, Function<DataSource, D> factory) {
+        this(dataSources, factory, FastEntity::getId);
+
+        // keys define placement, so they can't be generated by shard databases
+        for (D dao : shards) {
+            dao.setInsertKeys(true);
+        }
+    }
+
+    /**
+     * @param dataSources DataSources of shards
+     * @param factory     creates a DAO of &lt;E&gt; for a shard, usually with {@link FastDAO#FastDAO(DataSource)}
+     * @param shardKey    extracts shard key from an instance. For {@link #getByPK(Object)} and
+     *                    {@link #deleteByPK(Object)} to work, it must be the primary key
+     */
+    public ShardedDAO(List<DataSource> dataSources, Function<DataSource, D> factory, Function<E, Object> shardKey) {
+        if (dataSources.isEmpty()) {
+            throw new IllegalArgumentException("at least one shard DataSource is required");
+        }
+
+        List<D> shards = new ArrayList<>(dataSources.size());
+        for (DataSource dataSource : dataSources) {
+            shards.add(factory.apply(dataSource));
+        }
+        this.shards = Collections.unmodifiableList(shards);
+        this.shardKey = shardKey;
+
+        String name = shards.get(0).getClass().getSimpleName();
+        this.executor = Executors.newFixedThreadPool(shards.size(), r -> {
+            Thread thread = new Thread(r, "fastdao-shard-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return DAOs of all shards, in order of their DataSources
+     */
+    public List<D> getShards() {
+        return shards;
+    }
+
+    /**
+     * @param key shard key
+     * @return DAO of the shard the key belongs to
+     */
+    public D shard(Object key) {
+        return shards.get(index(key));
+    }
+
+    public void insert(List<E> objects) {
+        forEachShard("insert", objects, FastDAO::insert);
+    }
+
+    public Object insert(E object) {
+        return shard(shardKey.apply(object)).insert(object);
+    }
+
+    public void update(List<E> objects) {
+        forEachShard("update", objects, FastDAO::update);
+    }
+
+    public void update(E object) {
+        shard(shardKey.apply(object)).update(object);
+    }
+
+    public void delete(List<E> objects) {
+        forEachShard("delete", objects, FastDAO::delete);
+    }
+
+    public void delete(E object) {
+        shard(shardKey.apply(object)).delete(object);
+    }
+
+    public E getByPK(Object pk) {
+        return shard(pk).getByPK(pk);
+    }
+
+    public void deleteByPK(Object pk) {
+        shard(pk).deleteByPK(pk);
+    }
+
+    /**
+     * Call SELECT on all shards and gather results, in order of shards
+     *
+     * @param query any SQL Query, see {@link FastDAO#select(String, Object...)}
+     * @param args  objects, whose values will be used as source of replaceable parameters
+     * @return list of &lt;E&gt;
+     */
+    public List<E> select(String query, Object... args) {
+        return select(null, query, args);
+    }
+
+    /**
+     * Call SELECT on all shards and merge their results. Query must return rows in the same order as the comparator
+     * does, i.e. have matching ORDER BY
+     *
+     * @param order comparator of the query's ORDER BY, or null to gather results in order of shards
+     * @param query any SQL Query, see {@link FastDAO#select(String, Object...)}
+     * @param args  objects, whose values will be used as source of replaceable parameters
+     * @return list of &lt;E&gt;
+     */
+    public List<E> select(Comparator<? super E> order, String query, Object... args) {
+        Query template = Query.of(query);
+
+        return merge(order, scatter("select", dao -> dao.select(template, args)));
+    }
+
+    public List<E> getAll() {
+        return getAll(null);
+    }
+
+    /**
+     * Get all &lt;E&gt; instances from all shards
+     *
+     * @param order comparator to sort instances by, or null to gather them in order of shards
+     * @return all &lt;E&gt; instances
+     */
+    public List<E> getAll(Comparator<? super E> order) {
+        return merge(order, scatter("getAll", dao -> {
+            List<E> lst = dao.getAll();
+            if (order != null) {
+                lst.sort(order);
+            }
+            return lst;
+        }));
+    }
+
+    /**
+     * Stop worker threads. DAOs of shards remain usable directly
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private void forEachShard(String op, List<E> objects, ShardOperation<E, D> operation) {
+        int n = shards.size();
+        List<List<E>> split = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            split.add(new ArrayList<>(objects.size() / n + 1));
+        }
+        for (E object : objects) {
+            split.get(index(shardKey.apply(object))).add(object);
+        }
+
+        List<Integer> indexes = new ArrayList<>(n);
+        List<Future<?>> futures = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            List<E> part = split.get(i);
+            if (!part.isEmpty()) {
+                D dao = shards.get(i);
+                indexes.add(i);
+                futures.add(executor.submit(() -> {
+                    operation.apply(dao, part);
+                    return null;
+                }));
+            }
+        }
+
+        await(op, indexes, futures);
+    }
+
+    private int index(Object key) {
+        return Math.floorMod(hash(key), shards.size());
+    }
+
+    /**
+     * Hash of the key's value, the same in any JVM: longs of integral numbers, names of enums, and specified hash
+     * codes of strings, UUIDs and byte arrays. Other keys must have value-based hashCode()
+     */
+    private static int hash(Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException("shard key must not be null, so keys generated by the database can't be used");
+        }
+
+        if ((key instanceof Long) || (key instanceof Integer) || (key instanceof Short) || (key instanceof Byte)) {
+            return Long.hashCode(((Number) key).longValue());
+        }
+        if (key instanceof Enum) {
+            return ((Enum<?>) key).name().hashCode();
+        }
+        if (key instanceof byte[]) {
+            return Arrays.hashCode((byte[]) key);
+        }
+        if (!VALUE_HASH.get(key.getClass())) {
+            throw new IllegalArgumentException("shard key of " + key.getClass().getCanonicalName() + " has no value-based hashCode()");
+        }
+
+        return key.hashCode();
+    }
+
+    private List<List<E>> scatter(String op, Function<D, List<E>> operation) {
+        List<Integer> indexes = new ArrayList<>(shards.size());
+        List<Future<List<E>>> futures = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            D dao = shards.get(i);
+            indexes.add(i);
+            futures.add(executor.submit(() -> operation.apply(dao)));
+        }
+
+        return await(op, indexes, futures);
+    }
+
+    /**
+     * Wait for all shards, even if some have failed, so the caller knows which ones have completed
+     *
+     * @param indexes shards of futures
+     */
+    private <R> List<R> await(String op, List<Integer> indexes, List<? extends Future<? extends R>> futures) {
+        List<R> results = new ArrayList<>(futures.size());
+        List<Integer> succeeded = new ArrayList<>(futures.size());
+        List<Integer> failed = new ArrayList<>();
+        List<Exception> failures = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+                succeeded.add(indexes.get(i));
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                failed.add(indexes.get(i));
+                failures.add((cause instanceof Exception) ? (Exception) cause : e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new FastDAOException(op, e);
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            ShardedDAOException e = new ShardedDAOException(op + " - shards " + failed, failures.get(0),
+                    Collections.unmodifiableList(succeeded), Collections.unmodifiableList(failed));
+            for (int i = 1; i < failures.size(); i++) {
+                e.addSuppressed(failures.get(i));
+            }
+            throw e;
+        }
+
+        return results;
+    }
+
+    /**
+     * Concatenate results of shards, or merge them if they're ordered
+     */
+    private List<E> merge(Comparator<? super E> order, List<List<E>> results) {
+        int size = 0;
+        for (List<E> lst : results) {
+            size += lst.size();
+        }
+
+        List<E> merged = new ArrayList<>(size);
+        if (order == null) {
+            for (List<E> lst : results) {
+                merged.addAll(lst);
+            }
+            return merged;
+        }
+
+        // heads of shard results as {shard, position}
+        PriorityQueue<int[]> heads = new PriorityQueue<>(results.size(),
+                (a, b) -> order.compare(results.get(a[0]).get(a[1]), results.get(b[0]).get(b[1])));
+        for (int i = 0; i < results.size(); i++) {
+            if (!results.get(i).isEmpty()) {
+                heads.add(new int[]{i, 0});
+            }
+        }
+        while (!heads.isEmpty()) {
+            int[] head = heads.poll();
+            List<E> lst = results.get(head[0]);
+            merged.add(lst.get(head[1]));
+            if (++head[1] < lst.size()) {
+                heads.add(head);
+            }
+        }
+
+        return merged;
+    }
+
+    @FunctionalInterface
+    private interface ShardOperation<E extends FastEntity, D extends FastDAO<E>> {
+        void apply(D dao, List<E> objects);
+    }
+}
@@ -0,0 +1,32 @@
+package io.github.pastorgl.fastdao;
+
+import java.util.List;
+
+/**
+ * Failure of an operation on some of shards of {@link ShardedDAO}, which is thrown after all shards have finished.
+ * The cause is the failure of the first failed shard, and failures of the others are suppressed exceptions.
+ */
+public class ShardedDAOException extends FastDAOException {
+    private final List<Integer> succeededShards;
+    private final List<Integer> failedShards;
+
+    public ShardedDAOException(String cause, Exception e, List<Integer> succeededShards, List<Integer> failedShards) {
+        super(cause, e);
+        this.succeededShards = succeededShards;
+        this.failedShards = failedShards;
+    }
+
+    /**
+     * @return indexes of shards the operation has completed on, so their changes are committed
+     */
+    public List<Integer> getSucceededShards() {
+        return succeededShards;
+    }
+
+    /**
+     * @return indexes of shards the operation has failed on, in order of shards
+     */
+    public List<Integer> getFailedShards() {
+        return failedShards;
+    }
+}
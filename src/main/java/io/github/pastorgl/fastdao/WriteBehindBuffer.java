@@ -0,0 +1,226 @@
+package io.github.pastorgl.fastdao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Write-behind buffer that accepts single &lt;E&gt; inserts and updates from many threads and coalesces them into
+ * batch operations of the underlying {@link FastDAO}. A batch is flushed when batchSize instances are pending, or
+ * after lingerMillis otherwise. At most capacity instances may be pending, so callers block when the buffer is full.
+ * Order of operations is preserved, and pending instances are flushed on {@link #close()} and on JVM shutdown.
+ * <p>
+ * Batch insert doesn't return generated keys, so primary keys of inserted instances aren't set.
+ *
+ * @param <E> {@link FastEntity} subclass
+ */
+public class WriteBehindBuffer<E extends FastEntity> implements AutoCloseable {
+    private final FastDAO<E> dao;
+    private final int batchSize;
+    private final long lingerNanos;
+    /**
+     * Free slots of the buffer
+     */
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<Pending<E>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread flusher;
+    private final Thread shutdownHook;
+    private volatile boolean closed = false;
+
+    /**
+     * @param dao          DAO to flush batches to
+     * @param batchSize    max number of instances in one batch
+     * @param lingerMillis max time an instance may wait for its batch
+     * @param capacity     max number of pending instances
+     */
+    public WriteBehindBuffer(FastDAO<E> dao, int batchSize, long lingerMillis, int capacity) {
+        if ((batchSize <= 0) || (lingerMillis <= 0) || (capacity < batchSize)) {
+            throw new IllegalArgumentException("batchSize and lingerMillis must be positive, and capacity must not be less than batchSize");
+        }
+
+        this.dao = dao;
+        this.batchSize = batchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.permits = new Semaphore(capacity);
+
+        flusher = new Thread(this::run, "fastdao-write-behind-" + dao.getClass().getSimpleName());
+        flusher.setDaemon(true);
+        flusher.start();
+
+        shutdownHook = new Thread(this::close);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Enqueue an &lt;E&gt; instance for batch insert. Blocks while the buffer is full
+     *
+     * @param object &lt;E&gt; instance
+     * @return future completed when the batch containing the instance is written. If the underlying batch operation
+     * fails, futures of instances committed before the failure are completed normally
+     */
+    public CompletableFuture<Void> insert(E object) {
+        return submit(Op.INSERT, object);
+    }
+
+    /**
+     * Enqueue an &lt;E&gt; instance for batch update. Blocks while the buffer is full
+     *
+     * @param object &lt;E&gt; instance
+     * @return future completed when the batch containing the instance is written
+     */
+    public CompletableFuture<Void> update(E object) {
+        return submit(Op.UPDATE, object);
+    }
+
+    /**
+     * Write all instances pending at the moment of call in the calling thread
+     */
+    public synchronized void flush() {
+        int n = pending.get();
+
+        List<Pending<E>> run = new ArrayList<>();
+        Op op = null;
+        for (int i = 0; i < n; i++) {
+            Pending<E> p = queue.poll();
+            if (p == null) {
+                break;
+            }
+            pending.decrementAndGet();
+
+            if ((p.op != op) || (run.size() == batchSize)) {
+                execute(op, run);
+                run = new ArrayList<>();
+                op = p.op;
+            }
+            run.add(p);
+        }
+        execute(op, run);
+    }
+
+    /**
+     * Stop accepting new instances and write all pending ones
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException ignore) {
+                // JVM is already shutting down
+            }
+        }
+    }
+
+    private CompletableFuture<Void> submit(Op op, E object) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+
+        if (closed) {
+            future.completeExceptionally(new FastDAOException("write-behind", new IllegalStateException("buffer is closed")));
+            return future;
+        }
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(new FastDAOException("write-behind", e));
+            return future;
+        }
+
+        queue.offer(new Pending<>(op, object, future));
+        if (pending.incrementAndGet() >= batchSize) {
+            LockSupport.unpark(flusher);
+        }
+
+        if (closed) { // flusher may be already gone
+            flush();
+        }
+
+        return future;
+    }
+
+    private void run() {
+        while (!closed) {
+            if (pending.get() < batchSize) {
+                LockSupport.parkNanos(this, lingerNanos);
+            }
+
+            flush();
+        }
+    }
+
+    private void execute(Op op, List<Pending<E>> run) {
+        if (run.isEmpty()) {
+            return;
+        }
+
+        List<E> objects = new ArrayList<>(run.size());
+        for (Pending<E> p : run) {
+            objects.add(p.object);
+        }
+
+        try {
+            if (op == Op.INSERT) {
+                dao.insert(objects);
+            } else {
+                dao.update(objects);
+            }
+
+            for (Pending<E> p : run) {
+                p.future.complete(null);
+            }
+        } catch (FastDAOBatchException e) {
+            // DAO commits its own batches, so some of the run may be already written
+            int committed = e.getCommittedRows();
+            for (int i = 0; i < run.size(); i++) {
+                if (i < committed) {
+                    run.get(i).future.complete(null);
+                } else {
+                    run.get(i).future.completeExceptionally(e);
+                }
+            }
+        } catch (Exception e) {
+            for (Pending<E> p : run) {
+                p.future.completeExceptionally(e);
+            }
+        } finally {
+            permits.release(run.size());
+        }
+    }
+
+    private enum Op {
+        INSERT,
+        UPDATE
+    }
+
+    private static class Pending<E> {
+        private final Op op;
+        private final E object;
+        private final CompletableFuture<Void> future;
+
+        private Pending(Op op, E object, CompletableFuture<Void> future) {
+            this.op = op;
+            this.object = object;
+            this.future = future;
+        }
+    }
+}
@@ -4,15 +4,41 @@ import org.h2.jdbcx.JdbcDataSource;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.sql.Array;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class FastDAOTest {
 
@@ -50,6 +76,1081 @@ public class FastDAOTest {
         assertNull(underTest.getByPK(id));
     }
 
+    @Test
+    public void projectionTest() {
+        TestDAO underTest = new TestDAO();
+
+        TestEntity one = new TestEntity();
+        one.setBool(false);
+        one.setEnum(TestEnum.A);
+        one.setList(Arrays.asList(1, 2));
+        one.setVarchar("projected");
+
+        Long id = (Long) underTest.insert(one);
+
+        TestEntity _one = underTest.getByPK(id, "id", "varchar");
+        assertEquals("projected", _one.getVarchar());
+        assertNull(_one.getList());
+        assertNull(_one.getEnum());
+
+        underTest.fetch(_one, "list", "_enum");
+        assertEquals(Arrays.asList(1, 2), _one.getList());
+        assertEquals(TestEnum.A, _one.getEnum());
+
+        LazyDAO lazyDAO = new LazyDAO();
+        LazyEntity lazy = lazyDAO.getByPK(id);
+        assertEquals("projected", lazy.varchar);
+        assertNull(lazy.list);
+
+        List<LazyEntity> all = lazyDAO.getAll();
+        lazyDAO.fetch(all);
+        for (LazyEntity l : all) {
+            assertNotNull(l.list);
+        }
+
+        lazy.varchar = "updated";
+        lazyDAO.update(lazy);
+        assertEquals(Arrays.asList(1, 2), underTest.getByPK(id).getList());
+        lazy = lazyDAO.getByPK(id);
+        assertEquals("updated", lazy.varchar);
+
+        lazy.varchar = "batch";
+        lazyDAO.update(Collections.singletonList(lazy));
+        assertEquals("batch", underTest.getByPK(id).getVarchar());
+        assertEquals(Arrays.asList(1, 2), underTest.getByPK(id).getList());
+
+        lazy.varchar = "bulk";
+        lazyDAO.updateBulk(Collections.singletonList(lazy));
+        assertEquals("bulk", underTest.getByPK(id).getVarchar());
+        assertEquals(Arrays.asList(1, 2), underTest.getByPK(id).getList());
+
+        // unfetched lazy field set by the caller is written
+        lazy.list = Collections.singletonList(3);
+        lazyDAO.update(lazy);
+        assertEquals(Collections.singletonList(3), underTest.getByPK(id).getList());
+
+        // fields that weren't selected are kept, and selected ones are written as is
+        _one.setVarchar("projection updated");
+        _one.setEnum(null);
+        underTest.update(_one);
+        TestEntity stored = underTest.getByPK(id);
+        assertEquals("projection updated", stored.getVarchar());
+        assertNull(stored.getEnum());
+        assertEquals(Boolean.FALSE, stored.getBool());
+        assertEquals(Arrays.asList(1, 2), stored.getList());
+
+        List<TestEntity> projected = underTest.getAll("id", "bool");
+        projected.addAll(underTest.select("SELECT * FROM test_entity WHERE id=?", id));
+        for (TestEntity p : projected) {
+            p.setBool(true);
+        }
+        underTest.update(projected);
+        underTest.updateBulk(projected);
+        stored = underTest.getByPK(id);
+        assertEquals("projection updated", stored.getVarchar());
+        assertEquals(Boolean.TRUE, stored.getBool());
+
+        // fetched lazy column may be cleared
+        lazy = lazyDAO.getByPK(id);
+        lazyDAO.fetch(lazy);
+        lazy.list = null;
+        lazyDAO.update(lazy);
+        assertEquals(1, underTest.selectLongs("SELECT COUNT(*) FROM test_entity WHERE id=? AND list IS NULL", id)[0]);
+
+        lazy.list = Collections.singletonList(4);
+        lazyDAO.update(lazy);
+        lazy.list = null;
+        lazyDAO.update(Collections.singletonList(lazy));
+        assertEquals(1, underTest.selectLongs("SELECT COUNT(*) FROM test_entity WHERE id=? AND list IS NULL", id)[0]);
+
+        lazy.list = Collections.singletonList(4);
+        lazyDAO.update(lazy);
+        lazy.list = null;
+        lazyDAO.updateBulk(Collections.singletonList(lazy));
+        assertEquals(1, underTest.selectLongs("SELECT COUNT(*) FROM test_entity WHERE id=? AND list IS NULL", id)[0]);
+
+        underTest.deleteByPK(id);
+    }
+
+    @Test
+    public void primitiveColumnsTest() {
+        TestDAO underTest = new TestDAO();
+
+        List<TestEntity> objects = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            TestEntity e = new TestEntity();
+            e.setVarchar("primitive");
+            e.setEnum(TestEnum.B);
+            e.setList(Collections.singletonList(i));
+            objects.add(e);
+        }
+        underTest.insert(objects);
+
+        long[] ids = underTest.selectLongs("SELECT id FROM test_entity WHERE varchar=? ORDER BY id", "primitive");
+        assertEquals(2000, ids.length);
+        for (int i = 1; i < ids.length; i++) {
+            assertTrue(ids[i] > ids[i - 1]);
+        }
+
+        assertEquals(2000, underTest.selectInts("SELECT COUNT(*) FROM test_entity WHERE varchar=?", "primitive")[0]);
+
+        long[] sum = new long[1];
+        underTest.selectLongs(id -> sum[0] += id, "SELECT id FROM test_entity WHERE varchar=?", "primitive");
+        assertEquals(Arrays.stream(ids).sum(), sum[0]);
+
+        double[] doubles = underTest.selectDoubles("SELECT id / 2.0 FROM test_entity WHERE id=?", ids[0]);
+        assertEquals(ids[0] / 2.0, doubles[0], 0.0);
+
+        long[] rows = new long[2];
+        underTest.selectLongRows(row -> {
+            rows[0] += row[0];
+            rows[1] += row[1];
+        }, "SELECT id, id * 2 FROM test_entity WHERE varchar=?", "primitive");
+        assertEquals(rows[0] * 2, rows[1]);
+
+        underTest.delete(underTest.select("SELECT * FROM test_entity WHERE varchar=?", "primitive"));
+        assertEquals(0, underTest.selectLongs("SELECT id FROM test_entity WHERE varchar=?", "primitive").length);
+    }
+
+    @Test
+    public void queryTemplateTest() {
+        TestDAO underTest = new TestDAO();
+
+        List<TestEntity> objects = new ArrayList<>();
+        for (String v : new String[]{"template?", "template", "template"}) {
+            TestEntity e = new TestEntity();
+            e.setVarchar(v);
+            e.setEnum(TestEnum.C);
+            e.setList(Collections.singletonList(1));
+            objects.add(e);
+        }
+        underTest.insert(objects);
+
+        Query query = FastDAO.query("SELECT * FROM test_entity /* where? */ WHERE varchar IN ? -- or?\n"
+                + " AND varchar <> 'template?' AND enum=? ORDER BY id");
+        assertEquals(2, query.getParameterCount());
+        assertTrue(query.isInSlot(0));
+        assertTrue(!query.isInSlot(1));
+
+        List<TestEntity> found = underTest.select(query, Arrays.asList("template", "template?"), TestEnum.C.name());
+        assertEquals(2, found.size());
+        assertEquals("template", found.get(0).getVarchar());
+        assertEquals(2, underTest.select(query, Collections.singletonList("template"), TestEnum.C.name()).size());
+
+        assertEquals(1, underTest.select("SELECT * FROM test_entity WHERE varchar='template?' AND enum=?", TestEnum.C.name()).size());
+
+        // one-off queries don't push frequently used templates out
+        Query hot = Query.of("SELECT * FROM test_entity WHERE id=?");
+        for (int i = 0; i < 20_000; i++) {
+            Query.of("SELECT * FROM test_entity WHERE id=" + i);
+            if (i % 100 == 0) {
+                assertTrue(hot == Query.of("SELECT * FROM test_entity WHERE id=?"));
+            }
+        }
+        assertTrue(hot == Query.of("SELECT * FROM test_entity WHERE id=?"));
+
+        try {
+            underTest.select(query, "template");
+            fail();
+        } catch (FastDAOException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+
+        underTest.delete(underTest.select("SELECT * FROM test_entity WHERE varchar LIKE 'template%'"));
+    }
+
+    @Test
+    public void readCoalescingTest() throws Exception {
+        TestDAO underTest = new TestDAO();
+
+        TestEntity e = new TestEntity();
+        e.setVarchar("coalesced");
+        e.setEnum(TestEnum.A);
+        e.setList(Collections.singletonList(1));
+        Object id = underTest.insert(e);
+
+        DataSource ds = FastDAO.getDataSource();
+        AtomicInteger connections = new AtomicInteger();
+        FastDAO.setDataSource((DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{DataSource.class}, (proxy, method, args) -> {
+            if (method.getName().equals("getConnection")) {
+                connections.incrementAndGet();
+                Thread.sleep(300L);
+            }
+            return method.invoke(ds, args);
+        }));
+        FastDAO.setReadCoalescing(true);
+        try {
+            int threads = 8;
+            CyclicBarrier start = new CyclicBarrier(threads);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<CompletableFuture<List<TestEntity>>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        start.await();
+                    } catch (Exception ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                    return underTest.select("SELECT * FROM test_entity WHERE varchar=?", "coalesced");
+                }, executor));
+            }
+            executor.shutdown();
+
+            Set<List<TestEntity>> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (CompletableFuture<List<TestEntity>> result : results) {
+                List<TestEntity> lst = result.get(10L, TimeUnit.SECONDS);
+                assertEquals(1, lst.size());
+                assertEquals(id, lst.get(0).getId());
+                distinct.add(lst);
+            }
+            assertEquals(1, connections.get());
+            assertEquals(threads, distinct.size());
+        } finally {
+            FastDAO.setReadCoalescing(false);
+            FastDAO.setDataSource(ds);
+        }
+
+        // a write through another DAO of the same table detaches the read in flight
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        FastDAO.setDataSource((DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{DataSource.class}, (proxy, method, args) -> {
+            if (method.getName().equals("getConnection") && (calls.getAndIncrement() == 0)) {
+                blocked.countDown();
+                release.await();
+            }
+            return method.invoke(ds, args);
+        }));
+        FastDAO.setReadCoalescing(true);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<List<TestEntity>> before = executor.submit(() -> underTest.select("SELECT * FROM test_entity WHERE varchar=?", "coalesced"));
+            assertTrue(blocked.await(5L, TimeUnit.SECONDS));
+
+            new LazyDAO().deleteByPK(-1L);
+
+            Future<List<TestEntity>> after = executor.submit(() -> underTest.select("SELECT * FROM test_entity WHERE varchar=?", "coalesced"));
+            assertEquals(1, after.get(5L, TimeUnit.SECONDS).size());
+
+            release.countDown();
+            assertEquals(1, before.get(5L, TimeUnit.SECONDS).size());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+            FastDAO.setReadCoalescing(false);
+            FastDAO.setDataSource(ds);
+        }
+
+        underTest.delete(e);
+    }
+
+    @Test
+    public void shardedTest() throws SQLException {
+        List<DataSource> dataSources = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            JdbcDataSource ds = new JdbcDataSource();
+            ds.setUrl("jdbc:h2:mem:shard" + i + ";DB_CLOSE_DELAY=-1;DATABASE_TO_UPPER=false");
+            try (Connection con = ds.getConnection()) {
+                con.createStatement().execute("CREATE TABLE test_entity (id int8 auto_increment primary key, varchar varchar, bool boolean, enum varchar, list array)");
+            }
+            dataSources.add(ds);
+        }
+
+        try (ShardedDAO<TestEntity, TestDAO> underTest = new ShardedDAO<>(dataSources, TestDAO::new)) {
+            List<TestEntity> objects = new ArrayList<>();
+            for (long i = 1; i <= 300; i++) {
+                TestEntity e = new TestEntity();
+                e.setId(i);
+                e.setVarchar("sharded");
+                e.setEnum(TestEnum.A);
+                e.setList(Collections.singletonList((int) i));
+                objects.add(e);
+            }
+            underTest.insert(objects);
+
+            for (TestDAO shard : underTest.getShards()) {
+                assertEquals(100, shard.selectLongs("SELECT COUNT(*) FROM test_entity")[0]);
+            }
+            assertEquals(objects.get(41), underTest.getByPK(42L));
+
+            for (TestEntity e : objects) {
+                e.setBool(e.getId().equals(42L));
+            }
+            underTest.update(objects);
+
+            List<TestEntity> ordered = underTest.select(Comparator.comparing(TestEntity::getId),
+                    "SELECT * FROM test_entity WHERE id > ? ORDER BY id", 100L);
+            assertEquals(objects.subList(100, 300), ordered);
+            assertEquals(1, underTest.select("SELECT * FROM test_entity WHERE bool").size());
+
+            assertEquals(objects, underTest.getAll(Comparator.comparing(TestEntity::getId)));
+
+            // placement depends on the key's value only
+            assertEquals(Math.floorMod(Long.hashCode(42L), 3), underTest.getShards().indexOf(underTest.shard(42)));
+            assertEquals(Math.floorMod("B".hashCode(), 3), underTest.getShards().indexOf(underTest.shard(TestEnum.B)));
+            try {
+                underTest.shard(new Object());
+                fail();
+            } catch (IllegalArgumentException ignore) {
+            }
+
+            TestEntity generated = new TestEntity();
+            generated.setVarchar("sharded");
+            generated.setEnum(TestEnum.A);
+            generated.setList(Collections.singletonList(0));
+            try {
+                underTest.insert(Collections.singletonList(generated));
+                fail();
+            } catch (IllegalArgumentException ignore) {
+            }
+
+            underTest.deleteByPK(42L);
+            assertNull(underTest.getByPK(42L));
+            underTest.delete(objects);
+            assertEquals(0, underTest.getAll().size());
+
+            // failure of some shards is reported after all have finished
+            for (int i = 1; i < 3; i++) {
+                try (Connection con = dataSources.get(i).getConnection()) {
+                    con.createStatement().execute("DROP TABLE test_entity");
+                }
+            }
+            try {
+                underTest.insert(objects);
+                fail();
+            } catch (ShardedDAOException e) {
+                assertEquals(Collections.singletonList(0), e.getSucceededShards());
+                assertEquals(Arrays.asList(1, 2), e.getFailedShards());
+                assertEquals(1, e.getSuppressed().length);
+            }
+            assertEquals(100, underTest.getShards().get(0).selectLongs("SELECT COUNT(*) FROM test_entity")[0]);
+        } finally {
+            for (DataSource ds : dataSources) {
+                try (Connection con = ds.getConnection()) {
+                    con.createStatement().execute("DROP TABLE IF EXISTS test_entity");
+                }
+            }
+        }
+    }
+
+    @Test
+    public void keyTableTest() {
+        TestDAO underTest = new TestDAO();
+
+        List<TestEntity> objects = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            TestEntity e = new TestEntity();
+            e.setVarchar("keys" + i);
+            e.setEnum(TestEnum.B);
+            e.setList(Collections.singletonList(i));
+            objects.add(e);
+        }
+        underTest.insert(objects);
+        objects = underTest.select("SELECT * FROM test_entity WHERE varchar LIKE 'keys%' ORDER BY id");
+
+        List<Long> ids = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (TestEntity e : objects.subList(0, 25)) {
+            ids.add(e.getId());
+            names.add(e.getVarchar());
+        }
+
+        DataSource ds = FastDAO.getDataSource();
+        List<String> statements = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger opened = new AtomicInteger();
+        AtomicInteger closed = new AtomicInteger();
+        FastDAO.setDataSource((DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{DataSource.class}, (proxy, method, args) -> {
+            Object result = method.invoke(ds, args);
+            if (method.getName().equals("getConnection")) {
+                opened.incrementAndGet();
+                Connection con = (Connection) result;
+                return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Connection.class}, (cp, cm, cargs) -> {
+                    if (cm.getName().equals("prepareStatement")) {
+                        statements.add((String) cargs[0]);
+                    }
+                    if (cm.getName().equals("close") && !con.isClosed()) {
+                        closed.incrementAndGet();
+                    }
+                    try {
+                        return cm.invoke(con, cargs);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+            }
+            return result;
+        }));
+        FastDAO.setTempTableThreshold(10);
+        try {
+            assertEquals(objects.subList(0, 25), underTest.select("SELECT * FROM test_entity WHERE id IN ? ORDER BY id", ids));
+            assertTrue(statements.stream().anyMatch(sql -> sql.contains("(SELECT k FROM fastdao_keys_")));
+
+            statements.clear();
+            assertEquals(5, underTest.selectLongs("SELECT id FROM test_entity WHERE varchar LIKE ? AND varchar NOT IN ?", "keys%", names).length);
+            assertTrue(statements.stream().anyMatch(sql -> sql.contains("(SELECT k FROM fastdao_keys_")));
+
+            statements.clear();
+            assertEquals(5, underTest.select("SELECT * FROM test_entity WHERE id IN ?", ids.subList(0, 5)).size());
+            assertTrue(statements.stream().noneMatch(sql -> sql.contains("fastdao_keys_")));
+
+            // failure of the query itself is reported, and the connection is closed anyway
+            try {
+                underTest.select("SELECT * FROM test_entity WHERE no_such_column IN ?", ids);
+                fail();
+            } catch (FastDAOException e) {
+                assertEquals("select", e.getMessage());
+                assertTrue(e.getCause() instanceof SQLException);
+            }
+            assertEquals(opened.get(), closed.get());
+        } finally {
+            FastDAO.setTempTableThreshold(10_000);
+            FastDAO.setDataSource(ds);
+        }
+
+        underTest.delete(objects);
+    }
+
+    @Test
+    public void callerTransactionTest() throws SQLException {
+        TestDAO underTest = new TestDAO();
+
+        DataSource ds = FastDAO.getDataSource();
+        Connection tx = ds.getConnection();
+        tx.setAutoCommit(false);
+        FastDAO.setDataSource(transactionBound(ds, tx));
+        try {
+            TestEntity e = new TestEntity();
+            e.setVarchar("transaction");
+            e.setEnum(TestEnum.A);
+            e.setList(Collections.singletonList(1));
+            underTest.insert(Collections.singletonList(e));
+
+            assertEquals(1, underTest.selectLongs("SELECT COUNT(*) FROM test_entity WHERE varchar=?", "transaction")[0]);
+
+            // a staging table would have committed the insert
+            List<TestEntity> inserted = underTest.select("SELECT * FROM test_entity WHERE varchar=?", "transaction");
+            inserted.get(0).setBool(true);
+            underTest.updateBulk(inserted);
+            assertEquals(1, underTest.selectLongs("SELECT COUNT(*) FROM test_entity WHERE varchar=? AND bool", "transaction")[0]);
+            assertTrue(!tx.getAutoCommit());
+        } finally {
+            FastDAO.setDataSource(ds);
+            tx.rollback();
+            tx.close();
+        }
+
+        assertEquals(0, underTest.selectLongs("SELECT COUNT(*) FROM test_entity WHERE varchar=?", "transaction")[0]);
+    }
+
+    @Test
+    public void callerTransactionKeysTest() throws SQLException {
+        TestDAO underTest = new TestDAO();
+
+        DataSource ds = FastDAO.getDataSource();
+        Connection tx = ds.getConnection();
+        tx.setAutoCommit(false);
+        FastDAO.setDataSource(transactionBound(ds, tx));
+        FastDAO.setTempTableThreshold(10);
+        try {
+            List<TestEntity> objects = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                TestEntity e = new TestEntity();
+                e.setVarchar("transaction keys" + i);
+                e.setEnum(TestEnum.A);
+                e.setList(Collections.singletonList(i));
+                objects.add(e);
+                names.add(e.getVarchar());
+            }
+            underTest.insert(objects);
+
+            // a key table would have committed the insert
+            assertEquals(20, underTest.select("SELECT * FROM test_entity WHERE varchar IN ?", names).size());
+            assertTrue(!tx.getAutoCommit());
+        } finally {
+            FastDAO.setTempTableThreshold(10_000);
+            FastDAO.setDataSource(ds);
+            tx.rollback();
+            tx.close();
+        }
+
+        assertEquals(0, underTest.selectLongs("SELECT COUNT(*) FROM test_entity WHERE varchar LIKE ?", "transaction keys%")[0]);
+    }
+
+    /**
+     * Transaction-bound DataSource, which hands out the same connection, and closing it is a no-op
+     */
+    private DataSource transactionBound(DataSource ds, Connection tx) {
+        return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{DataSource.class}, (proxy, method, args) -> {
+            if (method.getName().equals("getConnection")) {
+                return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Connection.class}, (cp, cm, cargs) -> {
+                    try {
+                        return cm.getName().equals("close") ? null : cm.invoke(tx, cargs);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+            }
+            return method.invoke(ds, args);
+        });
+    }
+
+    @Test
+    public void writeBehindPartialTest() throws Exception {
+        TestDAO underTest = new TestDAO();
+        AtomicInteger batches = new AtomicInteger();
+        underTest.setBatchSizing(new BatchSizing() {
+            @Override
+            public int next(int rowBytes) {
+                if (batches.getAndIncrement() == 1) {
+                    throw new IllegalStateException("interrupted batch");
+                }
+                return 3;
+            }
+
+            @Override
+            public void record(int rows, long nanos) {
+            }
+        });
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        try (WriteBehindBuffer<TestEntity> buffer = new WriteBehindBuffer<>(underTest, 10, 10_000, 10)) {
+            for (int i = 0; i < 10; i++) {
+                TestEntity e = new TestEntity();
+                e.setVarchar("partial");
+                e.setEnum(TestEnum.A);
+                e.setList(Collections.singletonList(i));
+                futures.add(buffer.insert(e));
+            }
+            buffer.flush();
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            assertTrue(futures.get(i).isDone());
+            assertEquals(i >= 3, futures.get(i).isCompletedExceptionally());
+        }
+        assertEquals(3, underTest.selectLongs("SELECT COUNT(*) FROM test_entity WHERE varchar=?", "partial")[0]);
+
+        underTest.delete(underTest.select("SELECT * FROM test_entity WHERE varchar=?", "partial"));
+    }
+
+    @Test
+    public void writeBehindTest() throws Exception {
+        TestDAO underTest = new TestDAO();
+
+        List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+        try (WriteBehindBuffer<TestEntity> buffer = new WriteBehindBuffer<>(underTest, 100, 50, 300)) {
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread(() -> {
+                    for (int i = 0; i < 250; i++) {
+                        TestEntity e = new TestEntity();
+                        e.setVarchar("behind");
+                        e.setEnum(TestEnum.A);
+                        e.setList(Collections.singletonList(i));
+                        futures.add(buffer.insert(e));
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            futures.get(0).get(5, TimeUnit.SECONDS);
+        }
+
+        for (CompletableFuture<Void> future : futures) {
+            assertTrue(future.isDone() && !future.isCompletedExceptionally());
+        }
+        assertEquals(1000, underTest.selectLongs("SELECT COUNT(*) FROM test_entity WHERE varchar=?", "behind")[0]);
+
+        underTest.delete(underTest.select("SELECT * FROM test_entity WHERE varchar=?", "behind"));
+    }
+
+    @Test
+    public void batchInsertKeysTest() throws Exception {
+        TestDAO underTest = new TestDAO();
+
+        TestEntity keyed = new TestEntity();
+        keyed.setVarchar("keys");
+        keyed.setList(Collections.singletonList(0));
+        underTest.insert(keyed);
+        long id = keyed.getId();
+        underTest.delete(keyed);
+
+        // by default, keys are generated even if some instances have them set
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        try (WriteBehindBuffer<TestEntity> buffer = new WriteBehindBuffer<>(underTest, 10, 10_000, 10)) {
+            for (int i = 0; i < 5; i++) {
+                TestEntity e = new TestEntity();
+                e.setVarchar("keys");
+                e.setList(Collections.singletonList(i));
+                if (i == 2) {
+                    e.setId(id);
+                }
+                futures.add(buffer.insert(e));
+            }
+            buffer.flush();
+        }
+        for (CompletableFuture<Void> future : futures) {
+            assertTrue(future.isDone() && !future.isCompletedExceptionally());
+        }
+        List<TestEntity> inserted = underTest.select("SELECT * FROM test_entity WHERE varchar=?", "keys");
+        assertEquals(5, inserted.size());
+        for (TestEntity e : inserted) {
+            assertTrue(e.getId() != id);
+        }
+        underTest.delete(inserted);
+
+        // opted in, keys are written and must be set on all instances
+        underTest.setInsertKeys(true);
+        List<TestEntity> objects = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            TestEntity e = new TestEntity();
+            e.setId(id + 1000 + i);
+            e.setVarchar("keys");
+            e.setList(Collections.singletonList(i));
+            objects.add(e);
+        }
+        underTest.insert(objects);
+        for (TestEntity e : objects) {
+            assertEquals(e, underTest.getByPK(e.getId()));
+        }
+
+        TestEntity generated = new TestEntity();
+        generated.setVarchar("keys");
+        generated.setList(Collections.singletonList(0));
+        try {
+            underTest.insert(Collections.singletonList(generated));
+            fail();
+        } catch (FastDAOException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+
+        underTest.delete(objects);
+    }
+
+    @Test
+    public void queryCacheTest() throws SQLException {
+        TestDAO underTest = new TestDAO();
+        FastDAO.setQueryCache(new QueryCache(100, 60_000));
+        try {
+            TestEntity one = new TestEntity();
+            one.setVarchar("cached");
+            one.setEnum(TestEnum.B);
+            one.setList(Collections.singletonList(1));
+            Long id = (Long) underTest.insert(one);
+
+            List<TestEntity> first = underTest.select("SELECT * FROM test_entity WHERE varchar=?", "cached");
+            assertEquals(1, first.size());
+            first.get(0).setVarchar("changed by caller");
+
+            // a write bypassing FastDAO isn't seen until invalidation
+            try (Connection con = FastDAO.getDataSource().getConnection()) {
+                PreparedStatement ps = con.prepareStatement("INSERT INTO test_entity (varchar, enum, list) VALUES ('cached', 'A', ?)");
+                ps.setObject(1, new Object[]{1});
+                ps.executeUpdate();
+            }
+            List<TestEntity> second = underTest.select("SELECT * FROM test_entity WHERE varchar=?", "cached");
+            assertEquals(1, second.size());
+            assertEquals("cached", second.get(0).getVarchar());
+
+            second.get(0).getList().set(0, 42);
+            assertEquals(Collections.singletonList(1), underTest.select("SELECT * FROM test_entity WHERE varchar=?", "cached").get(0).getList());
+
+            one.setId(null);
+            underTest.insert(one);
+            assertEquals(3, underTest.select("SELECT * FROM test_entity WHERE varchar=?", "cached").size());
+
+            // write through another DAO for the same table invalidates too
+            LazyDAO lazyDAO = new LazyDAO();
+            lazyDAO.deleteByPK(id);
+            assertEquals(2, underTest.select("SELECT * FROM test_entity WHERE varchar=?", "cached").size());
+
+            underTest.delete(underTest.select("SELECT * FROM test_entity WHERE varchar=?", "cached"));
+            assertEquals(0, underTest.select("SELECT * FROM test_entity WHERE varchar=?", "cached").size());
+        } finally {
+            FastDAO.setQueryCache(null);
+        }
+    }
+
+    @Test
+    public void updateBulkTest() {
+        TestDAO underTest = new TestDAO();
+
+        List<TestEntity> objects = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            TestEntity e = new TestEntity();
+            e.setVarchar("bulk");
+            e.setEnum(TestEnum.A);
+            e.setBool(false);
+            e.setList(Collections.singletonList(i));
+            objects.add(e);
+        }
+        underTest.insert(objects);
+
+        objects = underTest.select("SELECT * FROM test_entity WHERE varchar=?", "bulk");
+        for (TestEntity e : objects) {
+            e.setEnum(TestEnum.C);
+            e.setBool(true);
+            e.setList(Arrays.asList(e.getList().get(0), 0));
+        }
+        underTest.updateBulk(objects);
+
+        List<TestEntity> updated = underTest.select("SELECT * FROM test_entity WHERE varchar=?", "bulk");
+        assertEquals(1200, updated.size());
+
+        assertTrue(updated.containsAll(objects));
+
+        TestEntity first = underTest.getByPK(objects.get(0).getId());
+        TestEntity last = underTest.getByPK(objects.get(0).getId());
+        first.setVarchar("bulk first");
+        last.setVarchar("bulk last");
+        underTest.updateBulk(Arrays.asList(first, objects.get(1), last));
+        assertEquals("bulk last", underTest.getByPK(first.getId()).getVarchar());
+
+        underTest.delete(updated);
+    }
+
+    @Test
+    public void resumableBatchTest() {
+        TestDAO underTest = new TestDAO();
+
+        List<TestEntity> objects = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            TestEntity e = new TestEntity();
+            e.setVarchar("resumable");
+            e.setEnum(TestEnum.A);
+            e.setList(Collections.singletonList(i));
+            objects.add(e);
+        }
+
+        DataSource ds = FastDAO.getDataSource();
+        AtomicInteger failures = new AtomicInteger(2);
+        FastDAO.setDataSource((DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{DataSource.class}, (proxy, method, args) -> {
+            if (method.getName().equals("getConnection") && (failures.getAndDecrement() > 0)) {
+                throw new SQLTransientConnectionException("connection refused", "08001");
+            }
+            return method.invoke(ds, args);
+        }));
+        FastDAO.setRetries(2, 1L);
+        try {
+            List<Integer> checkpoints = new ArrayList<>();
+            underTest.insert(objects, 0, (rows, batches) -> checkpoints.add(rows));
+            assertEquals(Arrays.asList(500, 1000, 1200), checkpoints);
+        } finally {
+            FastDAO.setDataSource(ds);
+            FastDAO.setRetries(3, 100L);
+        }
+        assertEquals(1200, underTest.selectLongs("SELECT COUNT(*) FROM test_entity WHERE varchar=?", "resumable")[0]);
+
+        objects = underTest.select("SELECT * FROM test_entity WHERE varchar=? ORDER BY id", "resumable");
+        for (TestEntity e : objects) {
+            e.setBool(true);
+        }
+        try {
+            underTest.update(objects, 0, (rows, batches) -> {
+                if (batches == 1) {
+                    throw new IllegalStateException("interrupted job");
+                }
+            });
+            fail();
+        } catch (FastDAOBatchException e) {
+            assertEquals(500, e.getCommittedRows());
+            assertEquals(500, underTest.selectLongs("SELECT COUNT(*) FROM test_entity WHERE varchar=? AND bool", "resumable")[0]);
+
+            underTest.update(objects, e.getCommittedRows(), null);
+        }
+        assertEquals(1200, underTest.selectLongs("SELECT COUNT(*) FROM test_entity WHERE varchar=? AND bool", "resumable")[0]);
+
+        underTest.delete(objects);
+    }
+
+    @Test
+    public void batchSizingTest() {
+        BatchSizing adaptive = BatchSizing.adaptive(10, 1000, 100);
+        assertEquals(1000, adaptive.next(100));
+        adaptive.record(1000, TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(500, adaptive.next(100));
+        adaptive.record(500, TimeUnit.MILLISECONDS.toNanos(10));
+        assertTrue(adaptive.next(100) > 500);
+        assertEquals(10, BatchSizing.adaptive(10, 1000, 100).next(1 << 30));
+
+        TestDAO underTest = new TestDAO();
+        underTest.setBatchSizing(BatchSizing.fixed(300));
+
+        List<TestEntity> objects = new ArrayList<>();
+        for (int i = 0; i < 700; i++) {
+            TestEntity e = new TestEntity();
+            e.setVarchar("sized");
+            e.setEnum(TestEnum.A);
+            e.setList(Collections.singletonList(i));
+            objects.add(e);
+        }
+
+        List<Integer> checkpoints = new ArrayList<>();
+        underTest.insert(objects, 0, (rows, batches) -> checkpoints.add(rows));
+        assertEquals(Arrays.asList(300, 600, 700), checkpoints);
+
+        underTest.setBatchSizing(BatchSizing.adaptive(50, 5000, 1000));
+        objects = underTest.select("SELECT * FROM test_entity WHERE varchar=?", "sized");
+        underTest.update(objects);
+        underTest.delete(objects);
+        assertEquals(0, underTest.selectLongs("SELECT COUNT(*) FROM test_entity WHERE varchar=?", "sized")[0]);
+    }
+
+    @Test
+    public void metadataTest() throws SQLException {
+        FastDAO.warmUp(TestEntity.class, LazyEntity.class);
+        FastDAO.validate(TestEntity.class, LazyEntity.class, EntityCount.class);
+
+        // underscore in the table name must not match other tables
+        try (Connection con = FastDAO.getDataSource().getConnection()) {
+            con.createStatement().execute("CREATE TABLE testXentity (id int8, missing varchar)");
+        }
+        try {
+            FastDAO.validate(BrokenEntity.class);
+            fail();
+        } catch (FastDAOException e) {
+            String message = e.getCause().getMessage();
+            assertTrue(message.contains("test_entity.missing"));
+            assertTrue(message.contains("BrokenEntity.bool"));
+        } finally {
+            try (Connection con = FastDAO.getDataSource().getConnection()) {
+                con.createStatement().execute("DROP TABLE testXentity");
+            }
+        }
+
+        try {
+            FastDAO.validate(Unmapped.class);
+            fail();
+        } catch (FastDAOException e) {
+            assertTrue(e.getCause().getMessage().contains("table Unmapped"));
+        }
+
+        try {
+            new TestDAO().select("SELECT id, 1 AS unmapped FROM test_entity");
+            fail();
+        } catch (FastDAOException e) {
+            assertTrue(e.getCause().getMessage().contains("unmapped"));
+        }
+    }
+
+    @Test
+    public void codecsTest() throws SQLException {
+        try (Connection con = FastDAO.getDataSource().getConnection()) {
+            con.createStatement().execute("CREATE TABLE codec_entity (id int8 auto_increment primary key, created timestamp, day date, moment timestamp, uid uuid, ids array, kind int)");
+        }
+        Codecs.register(Kind.class, Codecs.ordinal(Kind.class));
+
+        CodecDAO underTest = new CodecDAO();
+
+        CodecEntity one = new CodecEntity();
+        one.created = LocalDateTime.of(2020, 2, 29, 13, 45, 30);
+        one.day = LocalDate.of(2021, 12, 31);
+        one.moment = new java.util.Date(1_600_000_123_000L);
+        one.uid = UUID.randomUUID();
+        one.ids = new long[]{3L, 1L, 2L};
+        one.kind = Kind.SECOND;
+
+        Long id = (Long) underTest.insert(one);
+        CodecEntity _one = underTest.getByPK(id);
+        assertEquals(one.created, _one.created);
+        assertEquals(one.day, _one.day);
+        assertEquals(one.moment, _one.moment);
+        assertEquals(one.uid, _one.uid);
+        assertArrayEquals(one.ids, _one.ids);
+        assertEquals(Kind.SECOND, _one.kind);
+        assertEquals(1, underTest.selectInts("SELECT kind FROM codec_entity WHERE id=?", id)[0]);
+
+        assertEquals(1, underTest.select("SELECT * FROM codec_entity WHERE day=? AND uid=?", one.day, one.uid).size());
+
+        underTest.deleteByPK(id);
+    }
+
+    @Test
+    public void parallelScanTest() {
+        TestDAO underTest = new TestDAO();
+
+        List<TestEntity> objects = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            TestEntity e = new TestEntity();
+            e.setVarchar("scanned");
+            e.setEnum(TestEnum.B);
+            e.setList(Collections.singletonList(i));
+            objects.add(e);
+        }
+        underTest.insert(objects);
+
+        long[] ids = underTest.selectLongs("SELECT id FROM test_entity ORDER BY id");
+
+        Set<Long> scanned = ConcurrentHashMap.newKeySet();
+        underTest.scan(7, 3, e -> assertTrue(scanned.add(e.getId())));
+        assertEquals(ids.length, scanned.size());
+
+        assertEquals(ids.length, underTest.parallelScan(5).map(TestEntity::getId).distinct().count());
+
+        // failure of a later range doesn't wait for earlier ones
+        long start = System.nanoTime();
+        try {
+            underTest.scan(2, 2, e -> {
+                if (e.getId() == ids[0]) {
+                    try {
+                        Thread.sleep(5_000L);
+                    } catch (InterruptedException ignore) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else {
+                    throw new IllegalStateException("failed range");
+                }
+            });
+            fail();
+        } catch (FastDAOException e) {
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+        }
+
+        underTest.delete(underTest.select("SELECT * FROM test_entity WHERE varchar=?", "scanned"));
+    }
+
+    @Test
+    public void referencesTest() throws SQLException {
+        try (Connection con = FastDAO.getDataSource().getConnection()) {
+            con.createStatement().execute("CREATE TABLE ref_entity (id int8 auto_increment primary key, entity_id int8)");
+        }
+
+        TestDAO testDAO = new TestDAO();
+        List<TestEntity> targets = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            TestEntity e = new TestEntity();
+            e.setVarchar("referenced " + i);
+            e.setEnum(TestEnum.C);
+            e.setList(Collections.singletonList(i));
+            testDAO.insert(e);
+            targets.add(e);
+        }
+
+        RefDAO underTest = new RefDAO();
+        for (int i = 0; i < 10; i++) {
+            RefEntity ref = new RefEntity();
+            ref.entity = targets.get(i % 3);
+            underTest.insert(ref);
+        }
+
+        List<RefEntity> refs = underTest.getAll();
+        assertEquals(10, refs.size());
+        assertNull(refs.get(0).entity.getVarchar());
+
+        underTest.fetchReferences(refs, "entity", testDAO);
+        for (RefEntity ref : refs) {
+            assertTrue(targets.contains(ref.entity));
+        }
+        assertTrue(refs.get(0).entity == refs.get(3).entity);
+
+        underTest.delete(refs);
+        testDAO.delete(targets);
+    }
+
+    @Table("ref_entity")
+    public static class RefEntity extends FastEntity {
+        @PK
+        private Long id;
+
+        @Column("entity_id")
+        private TestEntity entity;
+
+        @Override
+        public Long getId() {
+            return id;
+        }
+    }
+
+    public static class RefDAO extends FastDAO<RefEntity> {
+    }
+
+    public enum Kind {
+        FIRST,
+        SECOND
+    }
+
+    @Table("codec_entity")
+    public static class CodecEntity extends FastEntity {
+        @PK
+        private Long id;
+        private LocalDateTime created;
+        private LocalDate day;
+        private java.util.Date moment;
+        private UUID uid;
+        private long[] ids;
+        private Kind kind;
+
+        @Override
+        public Long getId() {
+            return id;
+        }
+    }
+
+    public static class CodecDAO extends FastDAO<CodecEntity> {
+    }
+
+    public static class Unmapped extends FastEntity {
+        @PK
+        private Long id;
+
+        @Override
+        public Long getId() {
+            return id;
+        }
+    }
+
+    @Result
+    public static class EntityCount extends FastEntity {
+        @Column("cnt")
+        private Long cnt;
+
+        @Override
+        public Object getId() {
+            return null;
+        }
+    }
+
+    @Table("test_entity")
+    public static class BrokenEntity extends FastEntity {
+        @PK
+        private Long id;
+
+        @Column("missing")
+        private String missing;
+
+        @Column("bool")
+        private Long bool;
+
+        @Override
+        public Long getId() {
+            return id;
+        }
+    }
+
+    @Table("test_entity")
+    public static class LazyEntity extends FastEntity {
+        @PK
+        private Long id;
+
+        @Column("varchar")
+        private String varchar;
+
+        @Column(value = "list", store = TestConverter.class, retrieve = TestConverter.class, lazy = true)
+        private List<Integer> list;
+
+        @Override
+        public Long getId() {
+            return id;
+        }
+    }
+
+    public static class LazyDAO extends FastDAO<LazyEntity> {
+    }
+
     @Table("test_entity")
     public static class TestEntity extends FastEntity {
         @PK
@@ -127,11 +1228,23 @@ public class FastDAOTest {
     }
 
     public static class TestDAO extends FastDAO<TestEntity> {
+        public TestDAO() {
+        }
+
+        public TestDAO(DataSource dataSource) {
+            super(dataSource);
+        }
+
         @Override
         public List<TestEntity> select(String query, Object... args) {
             return super.select(query, args);
         }
 
+        @Override
+        public List<TestEntity> select(Query query, Object... args) {
+            return super.select(query, args);
+        }
+
         @Override
         public void insert(List<TestEntity> objects) {
             super.insert(objects);
@@ -187,12 +1300,12 @@ public class FastDAOTest {
     public static class TestConverter implements StoreConverter, RetrieveConverter {
         @Override
         public Object retrieve(Object dbValue) throws SQLException {
-            return Arrays.asList((Object[])dbValue);
+            return (dbValue == null) ? null : Arrays.asList((Object[])dbValue);
         }
 
         @Override
         public Object store(Connection connection, Object fieldValue) throws SQLException {
-            return connection.createArrayOf("integer", ((List) fieldValue).toArray());
+            return (fieldValue == null) ? null : connection.createArrayOf("integer", ((List) fieldValue).toArray());
         }
     }
 }